@@ -8,8 +8,11 @@ import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -26,6 +29,11 @@ public class ShopController {
     @Resource
     private IShopService shopService;
 
+    /**
+     * 异步请求的超时时间（毫秒）
+     */
+    private static final long ASYNC_TIMEOUT = 5000L;
+
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
@@ -36,6 +44,26 @@ public class ShopController {
         return shopService.queryById(id);
     }
 
+    /**
+     * 根据id查询商铺信息（异步），等待Redis期间不占用Tomcat工作线程
+     * @param id 商铺id
+     * @return 商铺详情数据
+     */
+    @GetMapping("/async/{id}")
+    public DeferredResult<Result> queryShopByIdAsync(@PathVariable("id") Long id) {
+        return toDeferredResult(shopService.queryByIdAsync(id));
+    }
+
+    /**
+     * 根据多个id并发查询商铺信息（异步）
+     * @param ids 商铺id列表
+     * @return 商铺列表
+     */
+    @GetMapping("/async/list")
+    public DeferredResult<Result> queryShopByIdsAsync(@RequestParam("ids") List<Long> ids) {
+        return toDeferredResult(shopService.queryByIdsAsync(ids));
+    }
+
     /**
      * 新增商铺信息
      * @param shop 商铺数据
@@ -43,10 +71,7 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -93,4 +118,17 @@ public class ShopController {
         // 返回数据
         return Result.ok(page.getRecords());
     }
+
+    private static DeferredResult<Result> toDeferredResult(CompletableFuture<Result> future) {
+        DeferredResult<Result> deferredResult = new DeferredResult<>(ASYNC_TIMEOUT, Result.fail("请求超时"));
+        future.whenComplete((result, e) -> {
+            if(e != null) {
+                // 交给WebExceptionAdvice统一处理
+                deferredResult.setErrorResult(e.getCause() != null ? e.getCause() : e);
+            } else {
+                deferredResult.setResult(result);
+            }
+        });
+        return deferredResult;
+    }
 }
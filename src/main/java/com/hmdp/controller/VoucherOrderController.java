@@ -3,12 +3,20 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderStatusNotifier;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.WaitingRoom;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletResponse;
 
 /**
  * <p>
@@ -25,8 +33,41 @@ public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
 
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+
+    @Resource
+    private WaitingRoom waitingRoom;
+
+    @Resource
+    private OrderStatusNotifier orderStatusNotifier;
+
     @PostMapping("seckill/{id}")
-    public Result seckillVoucher(@PathVariable("id") Long voucherId) {
+    public Result seckillVoucher(@PathVariable("id") Long voucherId, HttpServletResponse response) {
+        Long userId = UserHolder.getUser().getId();
+        // 排队模式只领取排队号，之后轮询排队状态
+        if(waitingRoom.isEnabled(voucherId)) {
+            return waitingRoom.enqueue(voucherId, userId);
+        }
+        // 限流拒绝的请求不生成订单id、不执行下单脚本
+        if(!seckillRateLimiter.tryAcquire(voucherId, userId)) {
+            response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+            return Result.fail("抢购人数过多，请稍后再试");
+        }
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    @GetMapping("seckill/{id}/status")
+    public Result seckillStatus(@PathVariable("id") Long voucherId) {
+        return Result.ok(waitingRoom.status(voucherId, UserHolder.getUser().getId()));
+    }
+
+    /**
+     * 查询秒杀订单的最终状态（长轮询），订单落库或失败时立即返回，超时返回PENDING
+     * @param orderId 抢购返回的订单id
+     */
+    @GetMapping("{id}/status")
+    public DeferredResult<Result> orderStatus(@PathVariable("id") Long orderId) {
+        return orderStatusNotifier.await(orderId, UserHolder.getUser().getId());
+    }
 }
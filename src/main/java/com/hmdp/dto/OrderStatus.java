@@ -0,0 +1,27 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class OrderStatus {
+    public static final String PENDING = "PENDING";
+    public static final String CREATED = "CREATED";
+    public static final String FAILED = "FAILED";
+    public static final String CANCELLED = "CANCELLED";
+
+    /**
+     * 订单状态：PENDING 排队落库中 / CREATED 已创建 / FAILED 创建失败 / CANCELLED 超时未支付已取消
+     */
+    private String status;
+    /**
+     * 订单id
+     */
+    private Long orderId;
+
+    public static OrderStatus of(Long orderId, String status) {
+        OrderStatus orderStatus = new OrderStatus();
+        orderStatus.setOrderId(orderId);
+        orderStatus.setStatus(status);
+        return orderStatus;
+    }
+}
@@ -0,0 +1,32 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class WaitingRoomStatus {
+    public static final String NOT_QUEUED = "NOT_QUEUED";
+    public static final String WAITING = "WAITING";
+    public static final String SUCCESS = "SUCCESS";
+    public static final String FAILED = "FAILED";
+
+    /**
+     * 排队状态：NOT_QUEUED / WAITING / SUCCESS / FAILED
+     */
+    private String status;
+    /**
+     * 排队号
+     */
+    private Long ticket;
+    /**
+     * 前面还有多少人
+     */
+    private Long position;
+    /**
+     * 抢购成功的订单id
+     */
+    private Long orderId;
+    /**
+     * 抢购失败的原因
+     */
+    private String errorMsg;
+}
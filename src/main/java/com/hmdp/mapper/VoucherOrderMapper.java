@@ -2,6 +2,10 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Collection;
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +17,34 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多值INSERT批量插入订单
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
+
+    /**
+     * 插入订单，订单id或 (active_voucher_id, user_id) 重复时忽略
+     * @return 插入的行数，0表示订单已存在或用户已经有未取消的订单
+     */
+    int insertIgnore(VoucherOrder order);
+
+    /**
+     * 秒杀券未取消订单的用户数，走唯一索引 uk_voucher_buyer
+     */
+    int countBuyers(@Param("voucherId") Long voucherId);
+
+    /**
+     * 按userId顺序分页查询秒杀券未取消订单的用户，走唯一索引 uk_voucher_buyer
+     */
+    List<Long> selectBuyers(@Param("voucherId") Long voucherId, @Param("afterUserId") Long afterUserId, @Param("limit") int limit);
+
+    /**
+     * 在给定的用户中查询有未取消订单的用户
+     */
+    List<Long> selectBuyersIn(@Param("voucherId") Long voucherId, @Param("userIds") Collection<Long> userIds);
+
+    /**
+     * 给定的订单id中已经落库的（包括已取消的订单），走主键
+     */
+    List<Long> selectExistingIds(@Param("ids") Collection<Long> ids);
 }
@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * <p>
  *  服务类
@@ -16,6 +19,12 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    CompletableFuture<Result> queryByIdAsync(Long id);
+
+    CompletableFuture<Result> queryByIdsAsync(List<Long> ids);
+
+    Result saveShop(Shop shop);
+
     Result updateShop(Shop shop);
 
     Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -16,7 +18,13 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
+    Result seckillVoucher(Long voucherId, Long userId);
+
     Result createVoucherOrder(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    String createVoucherOrder(VoucherOrder voucherOrder);
+
+    void createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    boolean cancelUnpaidOrder(Long orderId, Long voucherId, Long userId);
 }
@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
@@ -8,12 +7,12 @@ import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
@@ -25,6 +24,7 @@ import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -48,6 +48,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
     @Override
     public Result queryHotBlog(Integer current) {
         // 根据用户查询
@@ -57,30 +60,42 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         // 获取当前页数据
         List<Blog> records = page.getRecords();
         // 查询用户
-        records.forEach(blog -> {
-            queryBlogUser(blog);
-            isBlogLiked(blog);
-        });
+        queryBlogUser(records);
+        records.forEach(this::isBlogLiked);
         return Result.ok(records);
     }
 
     @Override
     public Result queryBlogById(Long id) {
+        // 布隆过滤器判定不存在的id不查数据库
+        if(!idBloomFilter.mightContain(IdBloomFilter.BLOG, id)) {
+            return Result.fail("笔记不存在");
+        }
         Blog blog = getById(id);
         if(blog == null) {
             return Result.fail("笔记不存在");
         }
-        queryBlogUser(blog);
+        queryBlogUser(Collections.singletonList(blog));
         // 查询blog是否被当前用户点赞
         isBlogLiked(blog);
         return Result.ok(blog);
     }
 
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    private void queryBlogUser(List<Blog> blogs) {
+        if(blogs.isEmpty()) {
+            return;
+        }
+        // 一次批量查询所有作者
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        List<UserDTO> users = userService.queryUserDTOByIds(userIds);
+        for (int i = 0; i < blogs.size(); i++) {
+            UserDTO user = users.get(i);
+            if(user == null) {
+                continue;
+            }
+            blogs.get(i).setName(user.getNickName());
+            blogs.get(i).setIcon(user.getIcon());
+        }
     }
 
     private void isBlogLiked(Blog blog) {
@@ -121,10 +136,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             return Result.ok(Collections.emptyList());
         }
         List<Long> ids = top.stream().map(Long::valueOf).collect(Collectors.toList());
-        String idStr = StrUtil.join(",", ids);
-        List<UserDTO> userDTOList = userService.query().in("id", ids).last("order by field(id, " + idStr + ")").list()
+        List<UserDTO> userDTOList = userService.queryUserDTOByIds(ids)
                 .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                .filter(Objects::nonNull)
                 .collect(Collectors.toList());
         return Result.ok(userDTOList);
     }
@@ -139,8 +153,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         boolean isSuccess = save(blog);
 
         if(!isSuccess) {
-            Result.fail("新增笔记失败！");
+            return Result.fail("新增笔记失败！");
         }
+        idBloomFilter.add(IdBloomFilter.BLOG, blog.getId());
         // 查询笔记作者的所有粉丝
         List<Follow> follows = followService.lambdaQuery().eq(Follow::getFollowUserId, userId).list();
 
@@ -172,11 +187,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         });
         String idsStr = StrUtil.join(",", ids);
         List<Blog> blogs = lambdaQuery().in(Blog::getId, ids).last("order by field(id, " + idsStr + ")").list();
-        blogs.forEach(blog -> {
-            queryBlogUser(blog);
-            // 查询blog是否被当前用户点赞
-            isBlogLiked(blog);
-        });
+        queryBlogUser(blogs);
+        // 查询blog是否被当前用户点赞
+        blogs.forEach(this::isBlogLiked);
 
         ScrollResult sr = new ScrollResult();
         sr.setList(blogs);
@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.baomidou.mybatisplus.core.toolkit.Wrappers;
 import com.hmdp.dto.Result;
@@ -17,6 +16,7 @@ import org.springframework.stereotype.Service;
 import javax.annotation.Resource;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -77,7 +77,7 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         Set<String> intersect = stringRedisTemplate.opsForSet().intersect(key, key2);
         if(intersect.isEmpty()) return Result.ok(Collections.emptyList());
         List<Long> ids = intersect.stream().map(Long::valueOf).collect(Collectors.toList());
-        List<UserDTO> userDTOList = ids.stream().map(nowId -> BeanUtil.copyProperties(userService.getById(nowId), UserDTO.class)).collect(Collectors.toList());
+        List<UserDTO> userDTOList = userService.queryUserDTOByIds(ids).stream().filter(Objects::nonNull).collect(Collectors.toList());
         return Result.ok(userDTOList);
     }
 }
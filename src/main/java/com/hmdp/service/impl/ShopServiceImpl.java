@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
@@ -10,7 +11,10 @@ import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.AsyncCacheClient;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheRebuildScheduler;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisData;
 import com.hmdp.utils.SystemConstants;
@@ -28,10 +32,9 @@ import org.springframework.transaction.annotation.Transactional;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
 
@@ -55,13 +58,14 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     CacheClient cacheClient;
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = new ThreadPoolExecutor(
-            10,
-            10,
-            60L,
-            TimeUnit.SECONDS,
-            new LinkedBlockingQueue<>()
-    );
+    @Resource
+    AsyncCacheClient asyncCacheClient;
+
+    @Resource
+    IdBloomFilter idBloomFilter;
+
+    @Resource
+    CacheRebuildScheduler rebuildScheduler;
 
     @Override
     public Result queryById(Long id) {
@@ -83,6 +87,15 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 //                this::getById,
 //                RedisConstants.CACHE_SHOP_TTL,
 //                TimeUnit.MINUTES
+//        );
+
+//        Shop shop = cacheClient.queryByIdWithEarlyRecompute(
+//                RedisConstants.CACHE_SHOP_KEY,
+//                id,
+//                Shop.class,
+//                this::getById,
+//                RedisConstants.CACHE_SHOP_TTL,
+//                TimeUnit.MINUTES
 //        );
 
         Shop shop = cacheClient.queryByIdWithRedisson(RedisConstants.CACHE_SHOP_KEY,
@@ -98,6 +111,35 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    @Override
+    public CompletableFuture<Result> queryByIdAsync(Long id) {
+        return queryShopAsync(id).thenApply(shop -> shop == null ? Result.fail("店铺不存在") : Result.ok(shop));
+    }
+
+    @Override
+    public CompletableFuture<Result> queryByIdsAsync(List<Long> ids) {
+        // 并发发出所有缓存查询，全部完成后按请求顺序返回，不存在的店铺被忽略
+        List<CompletableFuture<Shop>> futures = ids.stream()
+                .map(this::queryShopAsync)
+                .collect(Collectors.toList());
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                .thenApply(v -> Result.ok(futures.stream()
+                        .map(CompletableFuture::join)
+                        .filter(Objects::nonNull)
+                        .collect(Collectors.toList())));
+    }
+
+    private CompletableFuture<Shop> queryShopAsync(Long id) {
+        // 布隆过滤器的查询是阻塞的，放到未命中后的数据库线程中执行，不占用Tomcat线程和Lettuce的IO线程
+        return asyncCacheClient.queryByIdWithMutex(RedisConstants.CACHE_SHOP_KEY,
+                RedisConstants.LOCK_SHOP_KEY,
+                id,
+                Shop.class,
+                shopId -> idBloomFilter.mightContain(IdBloomFilter.SHOP, shopId) ? getById(shopId) : null,
+                RedisConstants.CACHE_SHOP_TTL,
+                TimeUnit.MINUTES);
+    }
+
     private Shop queryByIdWithLogicalExpire(Long id) {
         // 从缓存中取值
         String shopKey = RedisConstants.CACHE_SHOP_KEY + id;
@@ -114,18 +156,19 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             return shop;
         }
 
-        // 过期则开新线程更新缓存
+        // 过期则提交到重建调度器异步更新缓存
+        if(rebuildScheduler.touch(shopKey)) {
+            return shop;
+        }
         String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
         if(tryLock(lockKey)) {
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+            rebuildScheduler.submit(shopKey, () -> {
                 try {
                     saveShop2Redis(id, RedisConstants.CACHE_SHOP_TTL);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
                 } finally {
                     unLock(lockKey);
                 }
-            });
+            }, () -> unLock(lockKey));
         }
 
         // 返回旧值
@@ -275,6 +318,16 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
     }
 
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 新id加入布隆过滤器
+        idBloomFilter.add(IdBloomFilter.SHOP, shop.getId());
+        // 返回店铺id
+        return Result.ok(shop.getId());
+    }
+
     @Override
     @Transactional
     public Result updateShop(Shop shop) {
@@ -283,7 +336,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         updateById(shop);
 
-        stringRedisTemplate.delete(RedisConstants.LOCK_SHOP_KEY + shop.getId());
+        // 事务提交后删除Redis缓存并广播清除各节点的本地缓存
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + shop.getId());
         return Result.ok();
     }
 
@@ -332,11 +386,25 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             Distance distance = result.getDistance();
             distanceMap.put(shopIdStr, distance);
         });
-        // 5.根据id查询Shop
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        for (Shop shop : shops) {
+        // 5.根据id批量查询Shop（MGET + 缺失部分一次IN查询），结果与ids顺序一致
+        List<Shop> cachedShops = cacheClient.queryByIds(
+                RedisConstants.CACHE_SHOP_KEY,
+                RedisConstants.LOCK_SHOP_KEY,
+                ids,
+                Shop.class,
+                this::listByIds,
+                Shop::getId,
+                RedisConstants.CACHE_SHOP_TTL,
+                TimeUnit.MINUTES);
+        List<Shop> shops = new ArrayList<>(cachedShops.size());
+        for (Shop cachedShop : cachedShops) {
+            if(cachedShop == null) {
+                continue;
+            }
+            // 缓存对象可能被本地缓存共享，复制一份再设置距离
+            Shop shop = BeanUtil.copyProperties(cachedShop, Shop.class);
             shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+            shops.add(shop);
         }
         // 6.返回
         return Result.ok(shops);
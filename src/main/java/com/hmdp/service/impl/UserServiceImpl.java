@@ -12,6 +12,8 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.UserHolder;
@@ -28,6 +30,7 @@ import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
 
@@ -46,6 +49,12 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    CacheClient cacheClient;
+
+    @Resource
+    IdBloomFilter idBloomFilter;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         if(RegexUtils.isPhoneInvalid(phone)) {
@@ -148,11 +157,28 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(count);
     }
 
+    @Override
+    public List<UserDTO> queryUserDTOByIds(List<Long> ids) {
+        // 批量查询用户的公开信息，结果与ids一一对应，不存在的用户为null
+        return cacheClient.queryByIds(
+                RedisConstants.CACHE_USER_KEY,
+                RedisConstants.LOCK_USER_KEY,
+                ids,
+                UserDTO.class,
+                missIds -> listByIds(missIds).stream()
+                        .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                        .collect(Collectors.toList()),
+                UserDTO::getId,
+                RedisConstants.CACHE_USER_TTL,
+                TimeUnit.MINUTES);
+    }
+
     private User createUserWithPhone(String phone) {
         User user = new User();
         user.setPhone(phone);
         user.setNickName(USER_NICK_NAME_PREFIX + RandomUtil.randomString(10));
         save(user);
+        idBloomFilter.add(IdBloomFilter.USER, user.getId());
         return user;
     }
 }
@@ -3,6 +3,7 @@ package com.hmdp.service.impl;
 import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import com.hmdp.dto.OrderStatus;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
@@ -10,29 +11,56 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.OrderStatusNotifier;
+import com.hmdp.utils.OrderStreamRegistry;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillKeys;
 import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.VoucherStateTable;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -42,6 +70,7 @@ import java.util.concurrent.Executors;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
@@ -56,6 +85,33 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     @Resource
     private RedissonClient redissonClient;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Resource
+    private VoucherStateTable voucherStateTable;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private OrderStreamRegistry orderStreamRegistry;
+
+    @Resource
+    private OrderStatusNotifier orderStatusNotifier;
+
+    private Counter retryCounter;
+
+    private Counter deadLetterCounter;
+
+    /**
+     * 每次XREADGROUP最多读取的消息数。大于1时整批订单用一条多值INSERT落库、
+     * 每个优惠券合并成一条 stock = stock - k，并一次ACK整批消息；设为1即逐条处理
+     */
+    @Value("${hmdp.seckill.consumer.batch-size:100}")
+    private int batchSize;
+
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
@@ -63,20 +119,131 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT.setResultType(Long.class);
     }
 
+    private static final DefaultRedisScript<Long> SECKILL_TAKE_SCRIPT;
+    static {
+        SECKILL_TAKE_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_TAKE_SCRIPT.setLocation(new ClassPathResource("seckill_take.lua"));
+        SECKILL_TAKE_SCRIPT.setResultType(Long.class);
+    }
+
 //    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    /**
+     * 本节点的消费者线程数
+     */
+    @Value("${hmdp.seckill.consumer.threads:4}")
+    private int consumerThreads;
+
+    /**
+     * 一条消息最多投递的次数，超过后转入死信流，不再重试
+     */
+    @Value("${hmdp.seckill.consumer.max-deliveries:5}")
+    private int maxDeliveries;
+
+    /**
+     * 重试的指数退避：投递n次后至少等待 base * 2^(n-1) 毫秒再重试，不超过max
+     */
+    @Value("${hmdp.seckill.consumer.retry-backoff-millis:1000}")
+    private long retryBackoffMillis;
+
+    @Value("${hmdp.seckill.consumer.max-backoff-millis:60000}")
+    private long maxBackoffMillis;
+
+    private static final long RECOVER_INTERVAL_MILLIS = 1000;
+
+    private static final String BUYER_SET_BITMAP = "bitmap";
+
+    private static final int ORDER_STATUS_UNPAID = 1;
+
+    private static final int ORDER_STATUS_CANCELLED = 4;
+
+    /**
+     * 一人一单的已购用户存储方式：
+     * set    - userId字符串的SET，超过512个成员后是hashtable编码，每个成员约60字节（dictEntry、sds和桶指针），
+     *          100万买家约60MB，1000万约600MB；
+     * bitmap - 以userId为偏移量的位图，大小只取决于最大的userId（最大userId / 8字节），
+     *          userId在1000万以内时无论100万还是1000万买家都只占1.25MB，userId在1亿以内为12.5MB。
+     *          以上是未分片时每张券一个位图的数字；库存分成K个分片时每个分片有自己的位图，偏移量仍是userId本身，
+     *          每个分片的位图都会被大userId撑到最大userId / 8字节，总计约 K × 最大userId / 8，
+     *          例如userId在1亿以内、16个分片时约200MB，分片数较多时应改用set。
+     * bitmap要求userId是较稠密的自增id（tb_user主键），且小于2^32；userId稀疏（如雪花id）时用set
+     */
+    @Value("${hmdp.seckill.buyer-set:set}")
+    private String buyerSet;
+
+    /**
+     * 已购用户key在秒杀结束后保留的小时数，之后由Redis过期删除
+     */
+    @Value("${hmdp.seckill.buyer-set-retention-hours:24}")
+    private long buyerSetRetentionHours;
+
+    /**
+     * 下单后超过该时间未支付的订单自动取消，归还库存
+     */
+    @Value("${hmdp.seckill.unpaid.timeout-minutes:15}")
+    private long unpaidTimeoutMinutes;
+
+    /**
+     * 消费者心跳超时时间，超时未续期的消费者不再计入存活数
+     */
+    private static final long CONSUMER_TTL_MILLIS = 30000;
+
+    private static final long REBALANCE_INTERVAL_MILLIS = 5000;
+
+    /**
+     * 持有多个订单流且都没有新消息时的休眠时间
+     */
+    private static final long IDLE_SLEEP_MILLIS = 100;
+
+    private ExecutorService seckillOrderExecutor;
 
     private IVoucherOrderService proxy;
 
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        retryCounter = Counter.builder("seckill.order.retries").register(meterRegistry);
+        deadLetterCounter = Counter.builder("seckill.order.dead.letters").register(meterRegistry);
+        // 消费者名称：pid@hostname-序号，保证集群内唯一
+        String nodeName = ManagementFactory.getRuntimeMXBean().getName();
+        AtomicInteger index = new AtomicInteger();
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerThreads, r -> {
+            Thread thread = new Thread(r, "seckill-order-consumer-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < consumerThreads; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(nodeName + "-" + i));
+        }
     }
 
-    String queueName = "stream.orders";
+    @PreDestroy
+    private void destroy() {
+        seckillOrderExecutor.shutdownNow();
+    }
 
+    /**
+     * 一个消费者线程：从注册表发现所有订单流，按存活消费者数计算自己应持有的订单流数，通过Redisson锁认领，
+     * 再逐个读取已认领的订单流（各订单流在Cluster中可能位于不同节点，不能用一次XREADGROUP读取多个）。
+     * 新的秒杀券、节点加入或退出后，各消费者在下一次再平衡时让出或认领订单流。
+     * 同一秒杀券的订单都在同一个订单流（分片模式下为用户主分片或扣到库存的分片）中，由唯一的持有者按顺序处理
+     */
     private class VoucherOrderHandler implements Runnable {
+
+        private final String consumerName;
+
+        /**
+         * 已认领的订单流 -> 锁（Redisson看门狗自动续期，节点宕机后锁自动过期，由其他节点接管）
+         */
+        private final Map<String, RLock> owned = new TreeMap<>();
+
+        private long lastRebalance;
+
+        private long lastRecover;
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
         @Override
         public void run() {
             // 从阻塞队列取消息
@@ -90,96 +257,355 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //            }
 
             // 从redis消息队列取消息
-            while(true){
-                try {
-                    // xreadgroup group g1 c1 count 1 block 2000 streams streams.orders >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
-                    if(list == null || list.isEmpty()) {
-                        continue;
+            try {
+                while(!Thread.currentThread().isInterrupted()){
+                    try {
+                        rebalance();
+                        if(owned.isEmpty()) {
+                            TimeUnit.MILLISECONDS.sleep(REBALANCE_INTERVAL_MILLIS);
+                            continue;
+                        }
+                        recover();
+                        // 只持有一个订单流时阻塞读取；持有多个时依次非阻塞读取，都为空时短暂休眠
+                        StreamReadOptions options = owned.size() == 1
+                                ? StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2))
+                                : StreamReadOptions.empty().count(batchSize);
+                        boolean empty = true;
+                        for (String streamKey : owned.keySet()) {
+                            // xreadgroup group g1 {consumer} count {batchSize} streams seckill:{v123}:orders:p0 >
+                            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                                    Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, consumerName),
+                                    options,
+                                    StreamOffset.create(streamKey, ReadOffset.lastConsumed())
+                            );
+                            if(list == null || list.isEmpty()) {
+                                continue;
+                            }
+                            empty = false;
+                            handleRecords(streamKey, list);
+                        }
+                        if(empty && owned.size() > 1) {
+                            TimeUnit.MILLISECONDS.sleep(IDLE_SLEEP_MILLIS);
+                        }
+
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception e) {
+                        // 处理失败的消息留在pending-list中，由recover按退避时间重试，不阻塞新消息
+                        log.error("处理订单异常", e);
                     }
+                }
+            } finally {
+                owned.values().forEach(this::release);
+                stringRedisTemplate.opsForZSet().remove(RedisConstants.SECKILL_ORDER_CONSUMERS_KEY, consumerName);
+            }
+        }
 
-                    // 解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    handleVoucherOrder(voucherOrder);
+        private void rebalance() {
+            long now = System.currentTimeMillis();
+            if(now - lastRebalance < REBALANCE_INTERVAL_MILLIS) {
+                return;
+            }
+            lastRebalance = now;
+
+            // 心跳，并清理超时的消费者
+            String consumersKey = RedisConstants.SECKILL_ORDER_CONSUMERS_KEY;
+            stringRedisTemplate.opsForZSet().add(consumersKey, consumerName, now);
+            stringRedisTemplate.opsForZSet().removeRangeByScore(consumersKey, 0, now - CONSUMER_TTL_MILLIS);
+            Long alive = stringRedisTemplate.opsForZSet().zCard(consumersKey);
+            List<String> streams = new ArrayList<>(orderStreamRegistry.streams());
+            int fairShare = (int) Math.ceil((double) streams.size() / Math.max(1, alive == null ? 1 : alive));
+
+            // 已注销的订单流，以及超过份额的订单流让出（刚处理完一批，已全部ACK）
+            Iterator<Map.Entry<String, RLock>> iterator = owned.entrySet().iterator();
+            while(iterator.hasNext()) {
+                Map.Entry<String, RLock> entry = iterator.next();
+                if(owned.size() > fairShare || !streams.contains(entry.getKey())) {
+                    release(entry.getValue());
+                    iterator.remove();
+                }
+            }
 
-                    // ack
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+            // 不足份额时从随机位置开始认领无主的订单流，避免所有消费者争抢同一个
+            int start = streams.isEmpty() ? 0 : ThreadLocalRandom.current().nextInt(streams.size());
+            for (int i = 0; i < streams.size() && owned.size() < fairShare; i++) {
+                String streamKey = streams.get((start + i) % streams.size());
+                if(owned.containsKey(streamKey)) {
+                    continue;
+                }
+                RLock lock = redissonClient.getLock(RedisConstants.LOCK_ORDER_STREAM_KEY + streamKey);
+                if(lock.tryLock()) {
+                    owned.put(streamKey, lock);
+                    orderStreamRegistry.createGroupIfAbsent(streamKey);
+                    takeOver(streamKey);
+                    log.info("消费者{}认领订单流{}", consumerName, streamKey);
+                }
+            }
+        }
 
+        private void recover() {
+            long now = System.currentTimeMillis();
+            if(now - lastRecover < RECOVER_INTERVAL_MILLIS) {
+                return;
+            }
+            lastRecover = now;
+            for (String streamKey : owned.keySet()) {
+                try {
+                    recoverPending(streamKey, consumerName);
                 } catch (Exception e) {
-                    log.error("处理订单异常", e);
-                    handlePendingList();
+                    log.error("恢复订单流{}的pending消息异常", streamKey, e);
                 }
             }
         }
-    }
 
-    private void handlePendingList() {
-        while(true) {
+        /**
+         * 认领订单流后，先把前任消费者（可能已宕机）未ACK的消息转给自己并处理，再读取新消息。
+         * Spring Data Redis 2.6不支持XAUTOCLAIM，这里持有订单流的锁，用XPENDING + XCLAIM JUSTID转移，不增加投递次数
+         */
+        private void takeOver(String streamKey) {
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(streamKey, RedisConstants.SECKILL_ORDER_GROUP);
+            if(summary != null && summary.getTotalPendingMessages() > 0) {
+                summary.getPendingMessagesPerConsumer().forEach((owner, count) -> {
+                    if(owner.equals(consumerName) || count == 0) {
+                        return;
+                    }
+                    PendingMessages pending = stringRedisTemplate.opsForStream().pending(streamKey,
+                            Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, owner), Range.unbounded(), count);
+                    RecordId[] ids = pending.stream().map(PendingMessage::getId).toArray(RecordId[]::new);
+                    if(ids.length > 0) {
+                        // xclaim seckill:{v123}:orders:p0 g1 {consumer} 0 id... idle {maxBackoff} justid
+                        // 保留投递次数，并把空闲时间设为最大退避，让这些消息马上可以重试
+                        stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection -> connection.streamCommands().xClaimJustId(
+                                streamKey.getBytes(StandardCharsets.UTF_8), RedisConstants.SECKILL_ORDER_GROUP, consumerName,
+                                RedisStreamCommands.XClaimOptions.minIdle(Duration.ZERO).ids(ids).idle(Duration.ofMillis(maxBackoffMillis))));
+                    }
+                });
+            }
+            recoverPending(streamKey, consumerName);
+        }
+
+        private void release(RLock lock) {
             try {
-                // xreadgroup group g1 c1 count 1 streams streams.orders 0
-                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                        Consumer.from("g1", "c1"),
-                        StreamReadOptions.empty().count(1),
-                        StreamOffset.create(queueName, ReadOffset.from("0"))
-                );
-                if(list == null || list.isEmpty()) {
-                    break;
+                if(lock.isHeldByCurrentThread()) {
+                    lock.unlock();
                 }
+            } catch (Exception e) {
+                log.warn("释放订单流锁{}失败，等待其自动过期", lock.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * 处理自己pending-list中的消息：按投递次数指数退避，到期的消息用XCLAIM重新投递给自己后处理；
+     * 投递次数达到上限的消息（如数据异常导致每次都失败）转入死信流并ACK，不会无限重试占满消费者
+     */
+    private void recoverPending(String streamKey, String consumerName) {
+        // xpending seckill:{v123}:orders:p0 g1 - + {count} {consumer}
+        PendingMessages pending = stringRedisTemplate.opsForStream().pending(streamKey,
+                Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, consumerName), Range.unbounded(), batchSize * 10L);
+        if(pending == null || pending.isEmpty()) {
+            return;
+        }
+        List<RecordId> due = new ArrayList<>();
+        for (PendingMessage message : pending) {
+            long deliveries = message.getTotalDeliveryCount();
+            if(deliveries >= maxDeliveries) {
+                moveToDeadLetter(streamKey, message);
+            } else if(message.getElapsedTimeSinceLastDelivery().toMillis() >= backoffMillis(deliveries)) {
+                due.add(message.getId());
+            }
+        }
+        if(due.isEmpty()) {
+            return;
+        }
+
+        // 重新投递给自己，投递次数加一
+        retryCounter.increment(due.size());
+        List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection -> connection.streamCommands().xClaim(
+                streamKey.getBytes(StandardCharsets.UTF_8), RedisConstants.SECKILL_ORDER_GROUP, consumerName, Duration.ZERO, due.toArray(new RecordId[0])));
+        if(claimed == null || claimed.isEmpty()) {
+            return;
+        }
+        List<MapRecord<String, String, String>> records = claimed.stream()
+                .map(record -> record.deserialize(StringRedisSerializer.UTF_8))
+                .collect(Collectors.toList());
+        try {
+            handleRecords(streamKey, records);
+        } catch (Exception e) {
+            log.warn("重试{}个订单消息失败，稍后再试", records.size(), e);
+        }
+    }
+
+    private long backoffMillis(long deliveries) {
+        long shift = Math.min(Math.max(deliveries - 1, 0), 20);
+        return Math.min(retryBackoffMillis << shift, maxBackoffMillis);
+    }
 
-                // 解析消息中的订单信息
-                MapRecord<String, Object, Object> record = list.get(0);
-                Map<Object, Object> value = record.getValue();
-                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                handleVoucherOrder(voucherOrder);
+    /**
+     * 把消息原文连同来源和投递次数写入死信流，再ACK原消息，并通知等待该订单的请求下单失败
+     */
+    private void moveToDeadLetter(String streamKey, PendingMessage message) {
+        String id = message.getIdAsString();
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(streamKey, Range.closed(id, id));
+        Map<Object, Object> deadLetter = new HashMap<>();
+        VoucherOrder voucherOrder = null;
+        if(records != null && !records.isEmpty()) {
+            deadLetter.putAll(records.get(0).getValue());
+            voucherOrder = BeanUtil.fillBeanWithMap(records.get(0).getValue(), new VoucherOrder(), true);
+        }
+        deadLetter.put("stream", streamKey);
+        deadLetter.put("messageId", id);
+        deadLetter.put("deliveries", String.valueOf(message.getTotalDeliveryCount()));
+        stringRedisTemplate.opsForStream().add(RedisConstants.SECKILL_ORDER_DLQ_KEY, deadLetter);
+        stringRedisTemplate.opsForStream().acknowledge(streamKey, RedisConstants.SECKILL_ORDER_GROUP, message.getId());
+        deadLetterCounter.increment();
+        log.error("订单消息{}投递{}次仍处理失败，已转入死信流：{}", id, message.getTotalDeliveryCount(), deadLetter);
+        if(voucherOrder != null && voucherOrder.getId() != null) {
+            orderStatusNotifier.publish(Collections.singletonList(voucherOrder), OrderStatus.FAILED);
+        }
+    }
 
-                // ack
-                stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+    /**
+     * 处理一批消息：整批在一个事务内落库后一次ACK；批量失败时事务回滚，改为逐条处理，
+     * 只ACK处理成功的消息，失败的消息留在pending-list中重试
+     */
+    private void handleRecords(String streamKey, List<? extends MapRecord<String, ?, ?>> records) {
+        // 解析消息中的订单信息
+        List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+        for (MapRecord<String, ?, ?> record : records) {
+            Map<?, ?> value = record.getValue();
+            voucherOrders.add(BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true));
+        }
+
+        if(voucherOrders.size() > 1) {
+            try {
+                transactionTemplate.executeWithoutResult(status -> createVoucherOrders(voucherOrders));
+                acknowledge(streamKey, records);
+                removeInFlight(streamKey, voucherOrders);
+                orderStatusNotifier.publish(voucherOrders, OrderStatus.CREATED);
+                return;
             } catch (Exception e) {
-                log.error("处理订单异常", e);
+                log.warn("批量创建{}个订单失败，逐条处理", voucherOrders.size(), e);
             }
         }
+
+        List<MapRecord<String, ?, ?>> handled = new ArrayList<>(records.size());
+        Map<String, List<VoucherOrder>> statuses = new HashMap<>();
+        for (int i = 0; i < records.size(); i++) {
+            try {
+                String status = handleVoucherOrder(voucherOrders.get(i));
+                statuses.computeIfAbsent(status, k -> new ArrayList<>()).add(voucherOrders.get(i));
+                handled.add(records.get(i));
+            } catch (Exception e) {
+                log.error("处理订单{}异常", voucherOrders.get(i).getId(), e);
+            }
+        }
+        acknowledge(streamKey, handled);
+        removeInFlight(streamKey, statuses.getOrDefault(OrderStatus.CREATED, Collections.emptyList()));
+        statuses.forEach((status, orders) -> orderStatusNotifier.publish(orders, status));
+        if(handled.size() < records.size()) {
+            throw new IllegalStateException((records.size() - handled.size()) + "个订单处理失败");
+        }
     }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        // 创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        if(!lock.tryLock()) {
-            log.error("重复领取");
+    private void acknowledge(String streamKey, List<? extends MapRecord<String, ?, ?>> records) {
+        if(records.isEmpty()) {
+            return;
+        }
+        RecordId[] recordIds = records.stream().map(MapRecord::getId).toArray(RecordId[]::new);
+        stringRedisTemplate.opsForStream().acknowledge(streamKey, RedisConstants.SECKILL_ORDER_GROUP, recordIds);
+    }
+
+    /**
+     * 订单落库后从未落库订单中移除，失败只记录日志，由对账按数据库清理
+     */
+    private void removeInFlight(String streamKey, List<VoucherOrder> orders) {
+        if(orders.isEmpty()) {
             return;
         }
         try {
-//            IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
-            createVoucherOrder(voucherOrder);
-        } finally {
-            lock.unlock();
+            stringRedisTemplate.opsForSet().remove(SeckillKeys.inFlightKey(SeckillKeys.slotOf(streamKey)),
+                    orders.stream().map(order -> order.getId().toString()).toArray());
+        } catch (Exception e) {
+            log.warn("移除{}个已落库订单的在途标记失败", orders.size(), e);
         }
     }
 
+    private String handleVoucherOrder(VoucherOrder voucherOrder) {
+        // 下单脚本已经保证一人一单，同一用户对同一秒杀券只有一条有效的订单消息，不需要再加用户锁
+//            IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
+        // 在后台线程中自调用拿不到代理，用TransactionTemplate开启事务
+        return transactionTemplate.execute(status -> createVoucherOrder(voucherOrder));
+    }
+
     @Override
     public Result seckillVoucher(Long voucherId) {
         return seckillVoucherV2(voucherId);
     }
 
     public Result seckillVoucherV2(Long voucherId) {
-        Long userId = UserHolder.getUser().getId();
+        return seckillVoucher(voucherId, UserHolder.getUser().getId());
+    }
+
+    /**
+     * 为指定用户抢购，排队模式下由调度线程代替用户调用
+     */
+    @Override
+    public Result seckillVoucher(Long voucherId, Long userId) {
+        // 先用本地状态表拦截不存在、未开始、已结束和已售罄的请求，不访问Redis
+        VoucherStateTable.VoucherState state = voucherStateTable.get(voucherId);
+        if(!state.exists()) {
+            return Result.fail("优惠券不存在");
+        }
+        LocalDateTime now = LocalDateTime.now();
+        if(state.getBeginTime().isAfter(now)) {
+            return Result.fail("秒杀尚未开始");
+        }
+        if(state.getEndTime().isBefore(now)) {
+            return Result.fail("秒杀已经结束");
+        }
+        if(voucherStateTable.isSoldOut(state)) {
+            return Result.fail("库存不足");
+        }
+
         long orderId = redisIdWorker.nextId("order");
 
+        // 下单脚本访问的key都在用户所属的slot中：未分片时为秒杀券的slot，分片时为用户主分片的slot
+        int shards = state.getStockShards(), partitions = state.getOrderPartitions();
+        String slot = SeckillKeys.userSlot(voucherId, userId, shards);
+        String buyersKey = SeckillKeys.buyersKey(slot, isBitmapBuyerSet());
         Long result = stringRedisTemplate.execute(
                 SECKILL_SCRIPT,
-                Collections.emptyList(),
+                Arrays.asList(SeckillKeys.stockKey(slot), buyersKey, SeckillKeys.userOrdersKey(slot, userId, partitions),
+                        SeckillKeys.unpaidKey(slot), SeckillKeys.inFlightKey(slot)),
                 voucherId.toString(),
                 userId.toString(),
-                String.valueOf(orderId)
+                String.valueOf(orderId),
+                buyerSet,
+                buyerSetExpireAt(state.getEndTime()),
+                String.valueOf(unpaidDeadline()),
+                shards > 1 ? "1" : "0"
         );
 
         int r = result.intValue();
+        if(r == 3) {
+            // 主分片已空，名额已占住，从其他分片扣库存；都为空时释放名额，允许库存回补后再次抢购
+            boolean taken;
+            try {
+                taken = takeFromOtherShards(voucherId, userId, orderId, shards, partitions, buyerSetExpireAt(state.getEndTime()));
+            } catch (RuntimeException e) {
+                removeBuyer(buyersKey, userId);
+                throw e;
+            }
+            if(!taken) {
+                removeBuyer(buyersKey, userId);
+            }
+            r = taken ? 0 : 1;
+        }
+        if(r == 1) {
+            // 广播售罄，之后的请求在各节点本地直接拒绝
+            voucherStateTable.markSoldOut(voucherId);
+        }
         if(r != 0) {
             return Result.fail(r == 1 ? "库存不足" : "不能重复领取");
         }
@@ -197,6 +623,54 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         return Result.ok(orderId);
     }
 
+    /**
+     * 分片库存下单时用户主分片的库存为空，依次从其他分片扣库存。扣库存、写入该分片的订单流和超时队列在一个脚本中完成，
+     * 脚本只访问这个分片的key，热点优惠券的请求分散到多个slot（Cluster中为多个节点）
+     */
+    private boolean takeFromOtherShards(Long voucherId, Long userId, long orderId, int shards, int partitions, String expireAt) {
+        int home = SeckillKeys.homeShard(userId, shards);
+        for (int i = 1; i < shards; i++) {
+            String slot = SeckillKeys.slot(voucherId, (home + i) % shards);
+            Long taken = stringRedisTemplate.execute(
+                    SECKILL_TAKE_SCRIPT,
+                    Arrays.asList(SeckillKeys.stockKey(slot), SeckillKeys.userOrdersKey(slot, userId, partitions),
+                            SeckillKeys.unpaidKey(slot), SeckillKeys.inFlightKey(slot)),
+                    voucherId.toString(),
+                    userId.toString(),
+                    String.valueOf(orderId),
+                    String.valueOf(unpaidDeadline()),
+                    expireAt
+            );
+            if(taken != null && taken == 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isBitmapBuyerSet() {
+        return BUYER_SET_BITMAP.equals(buyerSet);
+    }
+
+    /**
+     * 已购用户key的过期时间：秒杀结束时间加上保留时间，秒级时间戳
+     */
+    private String buyerSetExpireAt(LocalDateTime endTime) {
+        return String.valueOf(endTime.plusHours(buyerSetRetentionHours).atZone(ZoneId.systemDefault()).toEpochSecond());
+    }
+
+    private long unpaidDeadline() {
+        return System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(unpaidTimeoutMinutes);
+    }
+
+    private void removeBuyer(String buyersKey, Long userId) {
+        if(isBitmapBuyerSet()) {
+            stringRedisTemplate.opsForValue().setBit(buyersKey, userId, false);
+        } else {
+            stringRedisTemplate.opsForSet().remove(buyersKey, userId.toString());
+        }
+    }
+
     public Result seckillVoucherV1(Long voucherId) {
         // 1.查询优惠券
         SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
@@ -263,27 +737,83 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         return Result.ok(orderId);
     }
 
+    /**
+     * 一人一单由唯一索引 uk_voucher_buyer(active_voucher_id, user_id) 保证，已取消的订单active_voucher_id为NULL，不占用名额。
+     * 先INSERT IGNORE再扣减库存：订单id重复（重复投递、超时取消写入的占位订单）或用户已有未取消的订单时不插入，也不扣减库存
+     * @return 订单状态，用于通知客户端
+     */
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
-        // 一人一单
-        Long userId =  voucherOrder.getUserId(), voucherId = voucherOrder.getVoucherId();
-        LambdaQueryWrapper<VoucherOrder> lambdaQueryWrapper = Wrappers.lambdaQuery(VoucherOrder.class)
-                .eq(VoucherOrder::getVoucherId, voucherId)
-                .eq(VoucherOrder::getUserId, userId)
-                .last("limit 1");
-        VoucherOrder one = getOne(lambdaQueryWrapper);
-        if(one != null) {
-            log.error("每人限领一次");
+    public String createVoucherOrder(VoucherOrder voucherOrder) {
+        // 创建订单
+        if(getBaseMapper().insertIgnore(voucherOrder) == 0) {
+            log.error("订单{}已存在或用户{}已购买过秒杀券{}", voucherOrder.getId(), voucherOrder.getUserId(), voucherOrder.getVoucherId());
+            // 只有插入失败时按主键查询，区分重复投递和重复购买
+            VoucherOrder existing = getById(voucherOrder.getId());
+            if(existing == null) {
+                return OrderStatus.FAILED;
+            }
+            return existing.getStatus() == ORDER_STATUS_CANCELLED ? OrderStatus.CANCELLED : OrderStatus.CREATED;
         }
-        // 5.扣减库存
+        // 扣减库存，库存不足时删除刚插入的订单
         boolean success = seckillVoucherService.update()
                 .setSql("stock = stock - 1")
-                .eq("voucher_id", voucherId).gt("stock", 0)
+                .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0)
                 .update();
         if(!success) {
+            removeById(voucherOrder.getId());
             log.error("库存不足");
+            return OrderStatus.FAILED;
         }
-        // 6.创建订单
-        save(voucherOrder);
+        return OrderStatus.CREATED;
+    }
+
+    /**
+     * 批量创建订单：每个优惠券一条 stock = stock - k，再用一条多值INSERT写入全部订单。
+     * 一人一单和库存已经由seckill.lua在Redis中保证，这里不再逐条查询；
+     * 任一优惠券库存不足或订单重复（违反主键或唯一索引）都抛出异常回滚整批，由调用方改为逐条处理
+     */
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 按优惠券id排序后扣减，多个事务以相同顺序加行锁，避免死锁
+        Map<Long, Long> counts = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, TreeMap::new, Collectors.counting()));
+        counts.forEach((voucherId, count) -> {
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + count)
+                    .eq("voucher_id", voucherId).ge("stock", count)
+                    .update();
+            if(!success) {
+                throw new IllegalStateException("优惠券" + voucherId + "库存不足");
+            }
+        });
+        getBaseMapper().insertBatch(voucherOrders);
+    }
+
+    /**
+     * 取消超时未支付的订单：只把状态为未支付的订单改为已取消，并归还数据库库存。
+     * 订单还未落库（消息积压或进入了死信流）时写入一条已取消的占位订单，之后消费到这条消息时不再创建订单
+     * @return 订单是否处于已取消状态（本次取消或之前已取消），是则需要归还Redis中的库存和名额
+     */
+    @Override
+    @Transactional
+    public boolean cancelUnpaidOrder(Long orderId, Long voucherId, Long userId) {
+        boolean cancelled = update()
+                .set("status", ORDER_STATUS_CANCELLED)
+                .set("active_voucher_id", null)
+                .eq("id", orderId).eq("status", ORDER_STATUS_UNPAID)
+                .update();
+        if(cancelled) {
+            seckillVoucherService.update()
+                    .setSql("stock = stock + 1")
+                    .eq("voucher_id", voucherId)
+                    .update();
+            return true;
+        }
+        VoucherOrder voucherOrder = getById(orderId);
+        if(voucherOrder == null) {
+            save(new VoucherOrder().setId(orderId).setVoucherId(voucherId).setUserId(userId).setStatus(ORDER_STATUS_CANCELLED));
+            return true;
+        }
+        return voucherOrder.getStatus() == ORDER_STATUS_CANCELLED;
     }
 }
@@ -7,8 +7,8 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import com.hmdp.utils.RedisConstants;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.SeckillCampaignScheduler;
+import com.hmdp.utils.VoucherStateTable;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -30,7 +30,10 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private VoucherStateTable voucherStateTable;
+
+    @Resource
+    private SeckillCampaignScheduler seckillCampaignScheduler;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -52,7 +55,9 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        // 保存秒杀库存到Redis中
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + seckillVoucher.getVoucherId(), String.valueOf(seckillVoucher.getStock()));
+        // 即将开始的秒杀券立即在Redis中预热库存和订单流，其余的由定时任务在开始前预热
+        seckillCampaignScheduler.prewarmIfDue(seckillVoucher);
+        // 事务提交后通知所有节点加载新的秒杀券状态
+        voucherStateTable.refresh(seckillVoucher.getVoucherId());
     }
 }
@@ -0,0 +1,410 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.SetArgs;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * CacheClient的异步版本，基于Lettuce的异步命令，所有方法返回CompletableFuture，等待Redis期间不占用Tomcat工作线程。
+ * 一条连接由所有请求复用（Lettuce连接线程安全，命令在连接上流水线发送）；
+ * 回调运行在Lettuce的IO线程上，因此查询数据库一律提交到有界的数据库线程池，绝不在回调中执行阻塞操作。
+ * 与CacheClient读写同一份缓存数据和锁，两者可以混用
+ */
+@Slf4j
+@Component
+public class AsyncCacheClient {
+
+    @Resource
+    private RedisProperties redisProperties;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private CacheRebuildScheduler rebuildScheduler;
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.cache.codec:json}")
+    private String codecName;
+
+    /**
+     * 查询数据库的线程数和排队上限，队列满时请求直接失败，而不是无限堆积
+     */
+    @Value("${hmdp.cache.async.db-threads:16}")
+    private int dbThreads;
+
+    @Value("${hmdp.cache.async.db-queue-capacity:1000}")
+    private int dbQueueCapacity;
+
+    @Value("${hmdp.cache.async.lock-ttl-millis:10000}")
+    private long lockTtlMillis;
+
+    /**
+     * 互斥锁被占用时的重试间隔和次数，重试由定时器触发，等待期间不占用线程
+     */
+    @Value("${hmdp.cache.async.retry-interval-millis:50}")
+    private long retryIntervalMillis;
+
+    @Value("${hmdp.cache.async.max-retries:100}")
+    private int maxRetries;
+
+    private static final CacheCodec JSON_CODEC = new JsonCacheCodec();
+
+    private static final CacheCodec BINARY_CODEC = new BinaryCacheCodec();
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * lookup结果中代表“缓存的是空值”的标记，与“未命中”（null）区分
+     */
+    private static final Object NULL_VALUE = new Object();
+
+    private static final String UNLOCK_SCRIPT;
+    static {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT = script.getScriptAsString();
+    }
+
+    private CacheCodec writeCodec;
+
+    private RedisClient redisClient;
+
+    private StatefulRedisConnection<byte[], byte[]> connection;
+
+    private RedisAsyncCommands<byte[], byte[]> commands;
+
+    private ThreadPoolExecutor dbExecutor;
+
+    private ScheduledExecutorService retryTimer;
+
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    /**
+     * Redisson锁按线程id区分持有者，异步加锁和解锁不在同一个线程上，因此每次加锁分配一个持有者id；
+     * 取负数，不会与本进程中同步加锁的真实线程id冲突
+     */
+    private final AtomicLong lockOwner = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        writeCodec = "binary".equalsIgnoreCase(codecName) ? BINARY_CODEC : JSON_CODEC;
+
+        RedisURI.Builder uri = RedisURI.builder()
+                .withHost(redisProperties.getHost())
+                .withPort(redisProperties.getPort())
+                .withDatabase(redisProperties.getDatabase());
+        if(redisProperties.getPassword() != null) {
+            uri.withPassword(redisProperties.getPassword().toCharArray());
+        }
+        if(redisProperties.getTimeout() != null) {
+            uri.withTimeout(redisProperties.getTimeout());
+        }
+        redisClient = RedisClient.create(uri.build());
+        connection = redisClient.connect(ByteArrayCodec.INSTANCE);
+        commands = connection.async();
+
+        AtomicInteger index = new AtomicInteger();
+        dbExecutor = new ThreadPoolExecutor(dbThreads, dbThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(dbQueueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "cache-async-db-" + index.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        retryTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cache-async-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Gauge.builder("cache.async.db.queue.depth", dbExecutor, e -> e.getQueue().size()).register(meterRegistry);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        retryTimer.shutdownNow();
+        dbExecutor.shutdown();
+        connection.close();
+        redisClient.shutdown();
+    }
+
+    public CompletableFuture<Void> set(String key, Object value, Long time, TimeUnit timeUnit) {
+        return setRaw(key, writeCodec.encode(value), time, timeUnit);
+    }
+
+    public CompletableFuture<Void> setWithLogicalExpire(String key, Object value, Long expireTime, TimeUnit timeUnit) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(expireTime)));
+        return setRaw(key, writeCodec.encodeRedisData(redisData), null, null);
+    }
+
+    public <R, ID> CompletableFuture<R> queryByIdWithPassThrough(String keyPrefix,
+                                                                 ID id,
+                                                                 Class<R> clazz,
+                                                                 Function<ID, R> dbFallBack,
+                                                                 Long expireTime,
+                                                                 TimeUnit timeUnit) {
+        String key = keyPrefix + id;
+        return lookup(keyPrefix, key, clazz).thenCompose(cached -> {
+            if(cached != null) {
+                return completed(cached, clazz);
+            }
+            // 缓存中不存在，查询数据库，并更新缓存（包括空值）
+            return loadAndSet(keyPrefix, key, id, dbFallBack, expireTime, timeUnit);
+        });
+    }
+
+    public <R, ID> CompletableFuture<R> queryByIdWithLogicalExpire(String keyPrefix,
+                                                                   String lockPrefix,
+                                                                   ID id,
+                                                                   Class<R> clazz,
+                                                                   Function<ID, R> dbFallBack,
+                                                                   Long expireTime,
+                                                                   TimeUnit timeUnit) {
+        String key = keyPrefix + id;
+        return commands.get(rawKey(key)).toCompletableFuture().thenApply(bytes -> {
+            if(bytes == null || bytes.length == 0) {
+                cacheMetrics.request(keyPrefix, CacheMetrics.MISS);
+                return null;
+            }
+            cacheMetrics.request(keyPrefix, CacheMetrics.HIT);
+            RedisData redisData = codecOf(bytes).decodeRedisData(bytes, clazz);
+            R r = clazz.cast(redisData.getData());
+
+            // 如果没有过期则返回值
+            if(redisData.getExpireTime().isAfter(LocalDateTime.now())) {
+                return r;
+            }
+
+            // 本节点已在重建该key，只提高其优先级
+            if(rebuildScheduler.touch(key)) {
+                return r;
+            }
+
+            // 过期则异步抢锁，抢到后提交到重建调度器，不等待抢锁结果直接返回旧值
+            String lockKey = lockPrefix + id;
+            String token = UUID.randomUUID().toString(true);
+            tryLock(lockKey, token).thenAccept(locked -> {
+                if(!locked) {
+                    return;
+                }
+                rebuildScheduler.submit(key, () -> {
+                    long begin = System.nanoTime();
+                    try {
+                        R r1 = loadFromDb(keyPrefix, dbFallBack, id);
+                        // 重建在调度器的工作线程上执行，可以等待写入完成
+                        setWithLogicalExpire(key, r1, expireTime, timeUnit).join();
+                    } finally {
+                        unLock(lockKey, token);
+                        cacheMetrics.rebuild(keyPrefix, System.nanoTime() - begin);
+                    }
+                }, () -> unLock(lockKey, token));
+            });
+
+            // 返回旧值
+            return r;
+        });
+    }
+
+    /**
+     * 互斥锁方案：未命中时进程内合并同一key的请求，leader异步抢Redisson锁（与CacheClient.queryByIdWithRedisson是同一把锁），
+     * 抢到锁的请求双重判定后查库写回；没抢到的请求由定时器隔一段时间重新读缓存，等待期间不占用线程
+     */
+    public <R, ID> CompletableFuture<R> queryByIdWithMutex(String keyPrefix,
+                                                           String lockPrefix,
+                                                           ID id,
+                                                           Class<R> clazz,
+                                                           Function<ID, R> dbFallBack,
+                                                           Long expireTime,
+                                                           TimeUnit timeUnit) {
+        String key = keyPrefix + id;
+        return lookup(keyPrefix, key, clazz).thenCompose(cached -> {
+            if(cached != null) {
+                return completed(cached, clazz);
+            }
+            return singleFlight.executeAsync(key,
+                    () -> loadWithMutex(keyPrefix, key, lockPrefix + id, id, clazz, dbFallBack, expireTime, timeUnit, 0));
+        });
+    }
+
+    private <R, ID> CompletableFuture<R> loadWithMutex(String keyPrefix,
+                                                       String key,
+                                                       String lockKey,
+                                                       ID id,
+                                                       Class<R> clazz,
+                                                       Function<ID, R> dbFallBack,
+                                                       Long expireTime,
+                                                       TimeUnit timeUnit,
+                                                       int attempt) {
+        long begin = System.nanoTime();
+        RLock lock = redissonClient.getLock(lockKey);
+        long owner = -lockOwner.incrementAndGet();
+        return lock.tryLockAsync(0, lockTtlMillis, TimeUnit.MILLISECONDS, owner).toCompletableFuture().thenCompose(locked -> {
+            if(!locked) {
+                if(attempt >= maxRetries) {
+                    CompletableFuture<R> timeout = new CompletableFuture<>();
+                    timeout.completeExceptionally(new IllegalStateException("等待缓存重建超时：" + key));
+                    return timeout;
+                }
+                // 锁被其他节点持有，稍后重新读缓存，仍未命中再抢锁
+                return delay(retryIntervalMillis)
+                        .thenCompose(v -> readCache(key, clazz))
+                        .thenCompose(cached -> cached != null
+                                ? completed(cached, clazz)
+                                : loadWithMutex(keyPrefix, key, lockKey, id, clazz, dbFallBack, expireTime, timeUnit, attempt + 1));
+            }
+            cacheMetrics.lockWait(keyPrefix, System.nanoTime() - begin);
+            // 双重判定
+            CompletableFuture<R> loaded = readCache(key, clazz).thenCompose(cached -> cached != null
+                    ? completed(cached, clazz)
+                    : loadAndSet(keyPrefix, key, id, dbFallBack, expireTime, timeUnit));
+            return loaded.whenComplete((r, e) -> {
+                lock.unlockAsync(owner).exceptionally(ex -> {
+                    log.warn("释放锁{}失败，等待其自动过期", lockKey, ex);
+                    return null;
+                });
+                cacheMetrics.rebuild(keyPrefix, System.nanoTime() - begin);
+            });
+        });
+    }
+
+    /**
+     * 查询缓存并记录命中率。返回解码后的值；缓存的是空值时返回NULL_VALUE；未命中返回null
+     */
+    private <R> CompletableFuture<Object> lookup(String keyPrefix, String key, Class<R> clazz) {
+        return readCache(key, clazz).thenApply(cached -> {
+            if(cached == null) {
+                cacheMetrics.request(keyPrefix, CacheMetrics.MISS);
+            } else {
+                cacheMetrics.request(keyPrefix, cached == NULL_VALUE ? CacheMetrics.NULL_HIT : CacheMetrics.HIT);
+            }
+            return cached;
+        });
+    }
+
+    private <R> CompletableFuture<Object> readCache(String key, Class<R> clazz) {
+        return commands.get(rawKey(key)).toCompletableFuture().thenApply(bytes -> {
+            if(bytes == null) {
+                return null;
+            }
+            if(bytes.length == 0) {
+                return NULL_VALUE;
+            }
+            try {
+                return codecOf(bytes).decode(bytes, clazz);
+            } catch (RuntimeException e) {
+                log.warn("缓存{}解码失败，按未命中处理", key, e);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 在数据库线程池中查询，再异步写回缓存，数据库中不存在时写入空值
+     */
+    private <R, ID> CompletableFuture<R> loadAndSet(String keyPrefix,
+                                                    String key,
+                                                    ID id,
+                                                    Function<ID, R> dbFallBack,
+                                                    Long expireTime,
+                                                    TimeUnit timeUnit) {
+        return CompletableFuture.supplyAsync(() -> loadFromDb(keyPrefix, dbFallBack, id), dbExecutor)
+                .thenCompose(r -> {
+                    if(r == null) {
+                        return setRaw(key, EMPTY, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES).thenApply(v -> null);
+                    }
+                    return set(key, r, expireTime, timeUnit).thenApply(v -> r);
+                });
+    }
+
+    private <R, ID> R loadFromDb(String keyPrefix, Function<ID, R> dbFallBack, ID id) {
+        long begin = System.nanoTime();
+        try {
+            return dbFallBack.apply(id);
+        } finally {
+            cacheMetrics.dbLoad(keyPrefix, System.nanoTime() - begin);
+        }
+    }
+
+    /**
+     * 逻辑过期方案的字符串锁，与CacheClient.queryByIdWithLogicalExpire的锁相同
+     */
+    private CompletableFuture<Boolean> tryLock(String lockKey, String token) {
+        return commands.set(rawKey(lockKey), token.getBytes(StandardCharsets.UTF_8), SetArgs.Builder.nx().px(lockTtlMillis))
+                .toCompletableFuture()
+                .thenApply("OK"::equals);
+    }
+
+    private void unLock(String lockKey, String token) {
+        commands.eval(UNLOCK_SCRIPT, ScriptOutputType.INTEGER, new byte[][]{rawKey(lockKey)}, token.getBytes(StandardCharsets.UTF_8))
+                .exceptionally(e -> {
+                    log.warn("释放锁{}失败，等待其自动过期", lockKey, e);
+                    return null;
+                });
+    }
+
+    /**
+     * 写入原始字节，time为null时不设置过期时间
+     */
+    private CompletableFuture<Void> setRaw(String key, byte[] value, Long time, TimeUnit timeUnit) {
+        if(value.length == 0) {
+            cacheMetrics.nullWrite(CacheMetrics.prefixOf(key));
+        } else {
+            cacheMetrics.payload(CacheMetrics.prefixOf(key), value.length);
+        }
+        CompletionStage<String> result = time == null
+                ? commands.set(rawKey(key), value)
+                : commands.set(rawKey(key), value, SetArgs.Builder.px(timeUnit.toMillis(time)));
+        return result.toCompletableFuture().thenApply(ok -> null);
+    }
+
+    private CompletableFuture<Void> delay(long millis) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        retryTimer.schedule(() -> future.complete(null), millis, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    private static <R> CompletableFuture<R> completed(Object cached, Class<R> clazz) {
+        return CompletableFuture.completedFuture(cached == NULL_VALUE ? null : clazz.cast(cached));
+    }
+
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static CacheCodec codecOf(byte[] bytes) {
+        return BINARY_CODEC.supports(bytes) ? BINARY_CODEC : JSON_CODEC;
+    }
+}
@@ -0,0 +1,326 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.ReflectUtil;
+import cn.hutool.json.JSONUtil;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * 紧凑的二进制格式，按字段名排序后依次写出，不写字段名。
+ * <pre>
+ * 实体：     [版本号][结构指纹 4字节][非空位图][各非空字段的值]
+ * 逻辑过期： [版本号][元数据个数 varint][元数据 varlong...][data是否为空][实体（不含版本号）]
+ *            元数据依次为：过期时间（毫秒）、重建耗时（毫秒，可选）。读取时忽略不认识的元数据
+ * </pre>
+ * 整数使用zigzag变长编码，时间使用UTC秒+纳秒。
+ * 结构指纹是按字段名排序后“字段名 类型”的CRC32，字段增删、改名、改类型后与缓存中的不一致，抛出异常，调用方按未命中处理
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    /**
+     * 格式版本，写在每个值的首字节，不会与JSON的'{'冲突
+     */
+    public static final byte VERSION = 2;
+
+    private static final Map<Class<?>, Field[]> FIELD_CACHE = new ConcurrentHashMap<>();
+
+    private static final Map<Class<?>, Integer> FINGERPRINT_CACHE = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean supports(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == VERSION;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Output out = new Output();
+        out.writeByte(VERSION);
+        writeBean(out, value);
+        return out.toByteArray();
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> clazz) {
+        Input in = new Input(bytes);
+        checkVersion(in);
+        return readBean(in, clazz);
+    }
+
+    @Override
+    public byte[] encodeRedisData(RedisData redisData) {
+        Output out = new Output();
+        out.writeByte(VERSION);
+        // 元数据：过期时间（毫秒）、重建耗时（毫秒）
+        Long delta = redisData.getDelta();
+        out.writeVarInt(delta == null ? 1 : 2);
+        out.writeVarLong(redisData.getExpireTime().toInstant(ZoneOffset.UTC).toEpochMilli());
+        if(delta != null) {
+            out.writeVarLong(delta);
+        }
+        Object data = redisData.getData();
+        out.writeByte(data == null ? 0 : 1);
+        if(data != null) {
+            writeBean(out, data);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public <R> RedisData decodeRedisData(byte[] bytes, Class<R> clazz) {
+        Input in = new Input(bytes);
+        checkVersion(in);
+        int metaCount = in.readVarInt();
+        long[] meta = new long[metaCount];
+        for (int i = 0; i < metaCount; i++) {
+            meta[i] = in.readVarLong();
+        }
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.ofEpochSecond(
+                Math.floorDiv(meta[0], 1000L), (int) Math.floorMod(meta[0], 1000L) * 1_000_000, ZoneOffset.UTC));
+        if(metaCount > 1) {
+            redisData.setDelta(meta[1]);
+        }
+        if(in.readByte() == 1) {
+            redisData.setData(readBean(in, clazz));
+        }
+        return redisData;
+    }
+
+    private void checkVersion(Input in) {
+        byte version = in.readByte();
+        if(version != VERSION) {
+            throw new IllegalStateException("不支持的缓存格式版本：" + version);
+        }
+    }
+
+    private void writeBean(Output out, Object bean) {
+        Field[] fields = fieldsOf(bean.getClass());
+        Object[] values = new Object[fields.length];
+        byte[] presence = new byte[(fields.length + 7) / 8];
+        for (int i = 0; i < fields.length; i++) {
+            values[i] = ReflectUtil.getFieldValue(bean, fields[i]);
+            if(values[i] != null) {
+                presence[i >> 3] |= 1 << (i & 7);
+            }
+        }
+        out.writeInt(fingerprintOf(bean.getClass()));
+        out.writeBytes(presence);
+        for (int i = 0; i < fields.length; i++) {
+            if(values[i] != null) {
+                writeValue(out, fields[i].getType(), values[i]);
+            }
+        }
+    }
+
+    private <R> R readBean(Input in, Class<R> clazz) {
+        Field[] fields = fieldsOf(clazz);
+        if(in.readInt() != fingerprintOf(clazz)) {
+            throw new IllegalStateException("缓存中的字段结构与" + clazz.getSimpleName() + "不一致");
+        }
+        byte[] presence = in.readBytes((fields.length + 7) / 8);
+        R bean = ReflectUtil.newInstance(clazz);
+        for (int i = 0; i < fields.length; i++) {
+            if((presence[i >> 3] & (1 << (i & 7))) != 0) {
+                ReflectUtil.setFieldValue(bean, fields[i], readValue(in, fields[i].getType()));
+            }
+        }
+        return bean;
+    }
+
+    private void writeValue(Output out, Class<?> type, Object value) {
+        if(type == String.class) {
+            out.writeString((String) value);
+        } else if(type == Long.class || type == long.class) {
+            out.writeVarLong((Long) value);
+        } else if(type == Integer.class || type == int.class) {
+            out.writeVarInt((Integer) value);
+        } else if(type == Double.class || type == double.class) {
+            out.writeLong(Double.doubleToLongBits((Double) value));
+        } else if(type == Boolean.class || type == boolean.class) {
+            out.writeByte((Boolean) value ? 1 : 0);
+        } else if(type == LocalDateTime.class) {
+            LocalDateTime time = (LocalDateTime) value;
+            out.writeVarLong(time.toEpochSecond(ZoneOffset.UTC));
+            out.writeVarInt(time.getNano());
+        } else {
+            // 其他类型退化为JSON字符串
+            out.writeString(JSONUtil.toJsonStr(value));
+        }
+    }
+
+    private Object readValue(Input in, Class<?> type) {
+        if(type == String.class) {
+            return in.readString();
+        } else if(type == Long.class || type == long.class) {
+            return in.readVarLong();
+        } else if(type == Integer.class || type == int.class) {
+            return in.readVarInt();
+        } else if(type == Double.class || type == double.class) {
+            return Double.longBitsToDouble(in.readLong());
+        } else if(type == Boolean.class || type == boolean.class) {
+            return in.readByte() == 1;
+        } else if(type == LocalDateTime.class) {
+            long seconds = in.readVarLong();
+            return LocalDateTime.ofEpochSecond(seconds, in.readVarInt(), ZoneOffset.UTC);
+        } else {
+            return JSONUtil.toBean(in.readString(), type);
+        }
+    }
+
+    private static Field[] fieldsOf(Class<?> clazz) {
+        return FIELD_CACHE.computeIfAbsent(clazz, c -> {
+            List<Field> fields = new ArrayList<>();
+            for (Field field : ReflectUtil.getFields(c)) {
+                int modifiers = field.getModifiers();
+                if(Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                    continue;
+                }
+                field.setAccessible(true);
+                fields.add(field);
+            }
+            Field[] result = fields.toArray(new Field[0]);
+            Arrays.sort(result, Comparator.comparing(Field::getName));
+            return result;
+        });
+    }
+
+    private static int fingerprintOf(Class<?> clazz) {
+        return FINGERPRINT_CACHE.computeIfAbsent(clazz, c -> {
+            CRC32 crc = new CRC32();
+            for (Field field : fieldsOf(c)) {
+                crc.update((field.getName() + " " + field.getType().getName() + ";").getBytes(StandardCharsets.UTF_8));
+            }
+            return (int) crc.getValue();
+        });
+    }
+
+    private static class Output {
+        private byte[] buf = new byte[128];
+        private int pos;
+
+        private void ensure(int n) {
+            if(pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, pos + n));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            for (int i = 3; i >= 0; i--) {
+                buf[pos++] = (byte) (v >>> (i * 8));
+            }
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for (int i = 7; i >= 0; i--) {
+                buf[pos++] = (byte) (v >>> (i * 8));
+            }
+        }
+
+        void writeVarInt(int v) {
+            writeVarLong(v);
+        }
+
+        void writeVarLong(long v) {
+            // zigzag，让小的负数也只占很少的字节
+            long zigzag = (v << 1) ^ (v >> 63);
+            ensure(10);
+            while((zigzag & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            buf[pos++] = (byte) zigzag;
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length);
+            writeBytes(bytes);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+
+    private static class Input {
+        private final byte[] buf;
+        private int pos;
+
+        Input(byte[] buf) {
+            this.buf = buf;
+        }
+
+        byte readByte() {
+            return buf[pos++];
+        }
+
+        byte[] readBytes(int n) {
+            byte[] bytes = Arrays.copyOfRange(buf, pos, pos + n);
+            pos += n;
+            return bytes;
+        }
+
+        int readInt() {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        long readLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        int readVarInt() {
+            return (int) readVarLong();
+        }
+
+        long readVarLong() {
+            long zigzag = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[pos++];
+                zigzag |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while((b & 0x80) != 0);
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        String readString() {
+            int len = readVarInt();
+            String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+    }
+}
@@ -1,26 +1,35 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
-import com.hmdp.service.impl.ShopServiceImpl;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
+import org.redisson.api.RTopic;
 import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 
+@Slf4j
 @Component
 @RequiredArgsConstructor
 public class CacheClient {
@@ -29,15 +38,119 @@ public class CacheClient {
 
     private final RedissonClient redissonClient;
 
+    private final IdBloomFilter idBloomFilter;
+
+    private final CacheRebuildScheduler rebuildScheduler;
+
+    private final HotKeyDetector hotKeyDetector;
+
+    private final CacheMetrics cacheMetrics;
+
+    /**
+     * 是否开启本地一级缓存（L1），关闭时所有读请求直接走Redis
+     */
+    @Value("${hmdp.cache.local.enabled:false}")
+    private boolean localCacheEnabled;
+
+    @Value("${hmdp.cache.local.capacity:10000}")
+    private int localCacheCapacity;
+
+    /**
+     * 本地缓存的最长存活时间（秒），实际存活时间取它与Redis TTL中的较小值
+     */
+    @Value("${hmdp.cache.local.ttl-seconds:30}")
+    private long localCacheTtlSeconds;
+
+    /**
+     * 写缓存使用的序列化格式：json 或 binary。读取时按首字节自动识别，两种格式可以共存
+     */
+    @Value("${hmdp.cache.codec:json}")
+    private String codecName;
+
+    /**
+     * 概率提前重建的激进程度，越大越早重建，1.0为论文推荐值
+     */
+    @Value("${hmdp.cache.xfetch.beta:1.0}")
+    private double xfetchBeta;
+
+    private static final CacheCodec JSON_CODEC = new JsonCacheCodec();
+
+    private static final CacheCodec BINARY_CODEC = new BinaryCacheCodec();
+
+    private CacheCodec writeCodec;
+
+    /**
+     * Redis中的空值标记
+     */
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * 本地缓存中代表“数据库中不存在”的空值标记
+     */
+    private static final Object NULL_VALUE = new Object();
+
+    private LRUCache<String, Object> localCache;
+
+    private RTopic invalidateTopic;
+
+    /**
+     * 失效代数，每收到一次失效通知加一。读线程在查Redis前记录代数，写回本地缓存时代数未变才写，
+     * 避免“读到旧值 -> 收到失效 -> 把旧值写回本地缓存”的竞争
+     */
+    private final AtomicLong invalidateGeneration = new AtomicLong();
+
+    /**
+     * 同一JVM内对同一个key的并发未命中共享一次加载
+     */
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    @PostConstruct
+    private void init() {
+        writeCodec = "binary".equalsIgnoreCase(codecName) ? BINARY_CODEC : JSON_CODEC;
+        if(localCacheEnabled) {
+            localCache = CacheUtil.newLRUCache(localCacheCapacity, TimeUnit.SECONDS.toMillis(localCacheTtlSeconds));
+        }
+        // 订阅失效广播，所有节点（包括自己）收到后清除本地一级缓存和热点副本
+        invalidateTopic = redissonClient.getTopic(RedisConstants.CACHE_INVALIDATE_TOPIC, StringCodec.INSTANCE);
+        invalidateTopic.addListener(String.class, (channel, key) -> {
+            invalidateGeneration.incrementAndGet();
+            removeLocal(key);
+        });
+    }
+
     public void set(String key, Object value, Long time, TimeUnit timeUnit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, timeUnit);
+        setRaw(key, writeCodec.encode(value), time, timeUnit);
     }
 
     public void setWithLogicalExpire(String key, Object value, Long expireTime, TimeUnit timeUnit) {
         RedisData redisData = new RedisData();
         redisData.setData(value);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(expireTime)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setRaw(key, writeCodec.encodeRedisData(redisData), null, null);
+    }
+
+    /**
+     * 删除缓存，并广播给所有节点清除本地一级缓存和热点副本。
+     * 在事务中调用时推迟到事务提交后执行，否则提交前到达的读请求会把旧数据重新写回缓存
+     */
+    public void delete(String key) {
+        if(TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    doDelete(key);
+                }
+            });
+        } else {
+            doDelete(key);
+        }
+    }
+
+    private void doDelete(String key) {
+        stringRedisTemplate.delete(key);
+        invalidateGeneration.incrementAndGet();
+        removeLocal(key);
+        invalidateTopic.publish(key);
     }
 
     public <R, ID> R queryByIdWithPassThrough(String keyPrefix,
@@ -48,25 +161,40 @@ public class CacheClient {
                                               TimeUnit timeUnit) {
         // 查询缓存中是否存在
         String shopKey = keyPrefix + id;
-        String shopJson = stringRedisTemplate.opsForValue().get(shopKey);
-        R r = null;
+        Object local = getLocal(shopKey);
+        if(local != null) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.LOCAL_HIT);
+            return local == NULL_VALUE ? null : clazz.cast(local);
+        }
+        // 本地未命中时再查布隆过滤器（需要访问Redis），判定不存在的id直接返回，不访问Redis缓存和数据库
+        if(!idBloomFilter.mightContainKey(keyPrefix, id)) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.BLOOM_REJECT);
+            return null;
+        }
+        long generation = invalidateGeneration.get();
+        byte[] bytes = getRaw(shopKey);
+        R r = decode(shopKey, bytes, clazz);
 
         // 缓存中存在，直接返回
-        if(StrUtil.isNotBlank(shopJson)) {
-            r = JSONUtil.toBean(shopJson, clazz);
+        if(r != null) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.HIT);
+            putLocal(shopKey, r, generation, expireTime, timeUnit);
             return r;
         }
 
         // 命中的是空值，即缓存中存在且是空值
-        if(shopJson != null) {
+        if(bytes != null && bytes.length == 0) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.NULL_HIT);
+            putLocal(shopKey, null, generation, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
             return null;
         }
 
         // 缓存中不存在，查询数据库，并更新缓存
-        r = dbFallBack.apply(id);
+        cacheMetrics.request(keyPrefix, CacheMetrics.MISS);
+        r = loadFromDb(keyPrefix, dbFallBack, id);
         if(r == null) {
             // 更新缓存空值
-            stringRedisTemplate.opsForValue().set(shopKey, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            setRaw(shopKey, EMPTY, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
             return null;
         }
         set(shopKey, r, expireTime, timeUnit);
@@ -74,14 +202,6 @@ public class CacheClient {
         return r;
     }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = new ThreadPoolExecutor(
-            10,
-            10,
-            60L,
-            TimeUnit.SECONDS,
-            new LinkedBlockingQueue<>()
-    );
-
     public <R, ID> R queryByIdWithLogicalExpire(String keyPrefix,
                                                  String lockPrefix,
                                                  ID id,
@@ -91,33 +211,40 @@ public class CacheClient {
                                                  TimeUnit timeUnit) {
         // 从缓存中取值
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
 
-        if(StrUtil.isBlank(json)) {
+        if(bytes == null || bytes.length == 0) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.MISS);
             return null;
         }
 
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), clazz);
+        cacheMetrics.request(keyPrefix, CacheMetrics.HIT);
+        RedisData redisData = codecOf(bytes).decodeRedisData(bytes, clazz);
+        R r = clazz.cast(redisData.getData());
 
         // 如果没有过期则返回值
         if(redisData.getExpireTime().isAfter(LocalDateTime.now())) {
             return r;
         }
 
-        // 过期则开新线程更新缓存
+        // 本节点已在重建该key，只提高其优先级
+        if(rebuildScheduler.touch(key)) {
+            return r;
+        }
+
+        // 过期则提交到重建调度器异步更新缓存，队列满时按溢出策略处理并释放锁
         String lockKey = lockPrefix + id;
         if(tryLock(lockKey)) {
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+            rebuildScheduler.submit(key, () -> {
+                long begin = System.nanoTime();
                 try {
-                    R r1 = dbFallBack.apply(id);
+                    R r1 = loadFromDb(keyPrefix, dbFallBack, id);
                     setWithLogicalExpire(key, r1, expireTime, timeUnit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
                 } finally {
                     unLock(lockKey);
+                    cacheMetrics.rebuild(keyPrefix, System.nanoTime() - begin);
                 }
-            });
+            }, () -> unLock(lockKey));
         }
 
         // 返回旧值
@@ -140,48 +267,424 @@ public class CacheClient {
                                         Function<ID, R> dbFallBack,
                                         Long expireTime,
                                         TimeUnit timeUnit) {
+        // 先查本地一级缓存
+        String key = keyPrefix + id;
+        Object local = getLocal(key);
+        if(local != null) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.LOCAL_HIT);
+            return local == NULL_VALUE ? null : clazz.cast(local);
+        }
+        // 本地未命中时再查布隆过滤器（需要访问Redis），判定不存在的id直接返回，不访问Redis缓存和数据库
+        if(!idBloomFilter.mightContainKey(keyPrefix, id)) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.BLOOM_REJECT);
+            return null;
+        }
+
         // 查询缓存中是否存在
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
-        R r = null;
+        long generation = invalidateGeneration.get();
+        byte[] bytes = getRaw(key);
+        R r = decode(key, bytes, clazz);
 
         // 缓存中存在，直接返回
-        if(StrUtil.isNotBlank(json)) {
-            r = JSONUtil.toBean(json, clazz);
+        if(r != null) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.HIT);
+            putLocal(key, r, generation, expireTime, timeUnit);
             return r;
         }
 
         // 命中的是空值，即缓存中存在且是空值
-        if(json != null) {
+        if(bytes != null && bytes.length == 0) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.NULL_HIT);
+            putLocal(key, null, generation, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
             return null;
         }
 
-        // 缓存中不存在，查询数据库，并更新缓存，使用双重判定锁保证只有一个线程更新缓存（防止缓存击穿）
-        String lockKey = lockPrefix + id;
+        // 缓存中不存在，查询数据库，并更新缓存。
+        // 先在进程内合并同一key的并发请求，只有leader去抢分布式锁，再用双重判定锁保证集群中只有一个线程更新缓存（防止缓存击穿）
+        cacheMetrics.request(keyPrefix, CacheMetrics.MISS);
+        return singleFlight.execute(key, () -> loadWithRedisson(keyPrefix, key, lockPrefix + id, id, clazz, dbFallBack, expireTime, timeUnit));
+    }
+
+    private <R, ID> R loadWithRedisson(String keyPrefix,
+                                       String key,
+                                       String lockKey,
+                                       ID id,
+                                       Class<R> clazz,
+                                       Function<ID, R> dbFallBack,
+                                       Long expireTime,
+                                       TimeUnit timeUnit) {
+        long begin = System.nanoTime();
         RLock lock = redissonClient.getLock(lockKey);
         lock.lock();
+        cacheMetrics.lockWait(keyPrefix, System.nanoTime() - begin);
 
+        R r;
         try {
             // 双重判定锁
-            json = stringRedisTemplate.opsForValue().get(key);
-            if(StrUtil.isNotBlank(json)) {
-                r = JSONUtil.toBean(json, clazz);
+            byte[] bytes = getRaw(key);
+            if(bytes != null && bytes.length == 0) {
+                return null;
+            }
+            r = decode(key, bytes, clazz);
+            if(r != null) {
                 return r;
             }
-            r = dbFallBack.apply(id);
+            r = loadFromDb(keyPrefix, dbFallBack, id);
             if(r == null) {
                 // 更新缓存空值
-                set(key, "", expireTime, timeUnit);
+                setRaw(key, EMPTY, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
                 return null;
             }
-            set(key, JSONUtil.toJsonStr(r), expireTime, timeUnit);
+            set(key, r, expireTime, timeUnit);
         } catch (Exception e) {
             throw new RuntimeException(e);
         } finally {
             lock.unlock();
+            cacheMetrics.rebuild(keyPrefix, System.nanoTime() - begin);
         }
 
         return r;
     }
 
+    /**
+     * 概率提前重建（XFetch）：缓存值里记录上次重建的耗时delta，
+     * 每次读取时以 now - delta * beta * ln(rand) >= 过期时间 为条件决定是否由当前请求提前重建。
+     * 离过期越近、重建越慢，提前重建的概率越大，因此热点key会在过期前被某一个请求刷新，
+     * 不需要加锁，物理TTL与逻辑过期时间相同，也不会返回过期的旧值
+     */
+    public <R, ID> R queryByIdWithEarlyRecompute(String keyPrefix,
+                                                  ID id,
+                                                  Class<R> clazz,
+                                                  Function<ID, R> dbFallBack,
+                                                  Long expireTime,
+                                                  TimeUnit timeUnit) {
+        if(!idBloomFilter.mightContainKey(keyPrefix, id)) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.BLOOM_REJECT);
+            return null;
+        }
+        String key = keyPrefix + id;
+        byte[] bytes = getRaw(key);
+
+        // 命中的是空值
+        if(bytes != null && bytes.length == 0) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.NULL_HIT);
+            return null;
+        }
+
+        if(bytes != null) {
+            RedisData redisData = null;
+            try {
+                redisData = codecOf(bytes).decodeRedisData(bytes, clazz);
+            } catch (RuntimeException e) {
+                log.warn("缓存{}解码失败，按未命中处理", key, e);
+            }
+            if(redisData != null) {
+                cacheMetrics.request(keyPrefix, CacheMetrics.HIT);
+                if(!shouldRecomputeEarly(redisData)) {
+                    return clazz.cast(redisData.getData());
+                }
+            } else {
+                cacheMetrics.request(keyPrefix, CacheMetrics.MISS);
+            }
+            // 当前请求被选中提前重建，其他请求继续读取未过期的缓存
+            return recompute(keyPrefix, key, id, dbFallBack, expireTime, timeUnit);
+        }
+
+        // 缓存已经过期或不存在，进程内合并并发请求后重建
+        cacheMetrics.request(keyPrefix, CacheMetrics.MISS);
+        return singleFlight.execute(key, () -> recompute(keyPrefix, key, id, dbFallBack, expireTime, timeUnit));
+    }
+
+    private boolean shouldRecomputeEarly(RedisData redisData) {
+        long delta = redisData.getDelta() == null ? 0 : redisData.getDelta();
+        long expireMillis = redisData.getExpireTime().toInstant(ZoneOffset.UTC).toEpochMilli();
+        long nowMillis = LocalDateTime.now().toInstant(ZoneOffset.UTC).toEpochMilli();
+        // 1 - nextDouble() 的取值范围是 (0, 1]，避免 ln(0)
+        double gap = -delta * xfetchBeta * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        return nowMillis + gap >= expireMillis;
+    }
+
+    private <R, ID> R recompute(String keyPrefix, String key, ID id, Function<ID, R> dbFallBack, Long expireTime, TimeUnit timeUnit) {
+        long begin = System.nanoTime();
+        try {
+            R r = loadFromDb(keyPrefix, dbFallBack, id);
+            if(r == null) {
+                // 更新缓存空值
+                setRaw(key, EMPTY, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+                return null;
+            }
+            RedisData redisData = new RedisData();
+            redisData.setData(r);
+            redisData.setDelta(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+            redisData.setExpireTime(LocalDateTime.now().plusNanos(timeUnit.toNanos(expireTime)));
+            // 物理过期时间与逻辑过期时间一致
+            setRaw(key, writeCodec.encodeRedisData(redisData), expireTime, timeUnit);
+            return r;
+        } finally {
+            cacheMetrics.rebuild(keyPrefix, System.nanoTime() - begin);
+        }
+    }
+
+    /**
+     * 批量查询，返回结果与ids一一对应（数据库中不存在的位置为null）。
+     * 先查本地缓存，再用一次MGET查Redis，未命中的id加锁后只对缺失部分执行一次IN查询，
+     * 查询结果（包括空值）通过一次pipeline写回Redis
+     * @param dbFallBack 根据id集合批量查询数据库，返回顺序不限
+     * @param idGetter 从查询结果中取出id，用于把数据库结果对应回请求的id
+     */
+    public <R, ID> List<R> queryByIds(String keyPrefix,
+                                      String lockPrefix,
+                                      List<ID> ids,
+                                      Class<R> clazz,
+                                      Function<Collection<ID>, List<R>> dbFallBack,
+                                      Function<R, ID> idGetter,
+                                      Long expireTime,
+                                      TimeUnit timeUnit) {
+        if(ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // id -> 结果，空值用NULL_VALUE标记
+        Map<ID, Object> found = new HashMap<>(ids.size());
+
+        // 1.先查本地一级缓存，本地未命中的再查布隆过滤器（需要访问Redis），判定不存在的id直接记为空值
+        List<ID> missIds = new ArrayList<>(ids.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            Object local = getLocal(keyPrefix + id);
+            if(local != null) {
+                cacheMetrics.request(keyPrefix, CacheMetrics.LOCAL_HIT);
+                found.put(id, local);
+            } else if(!idBloomFilter.mightContainKey(keyPrefix, id)) {
+                cacheMetrics.request(keyPrefix, CacheMetrics.BLOOM_REJECT);
+                found.put(id, NULL_VALUE);
+            } else {
+                missIds.add(id);
+            }
+        }
+
+        // 2.MGET查Redis
+        long generation = invalidateGeneration.get();
+        missIds = multiGet(keyPrefix, missIds, clazz, found, generation, expireTime, timeUnit, true);
+
+        // 3.Redis未命中，加锁后双重判定，只对仍然缺失的id查一次数据库（防止缓存击穿）
+        if(!missIds.isEmpty()) {
+            long begin = System.nanoTime();
+            RLock lock = getMultiLock(lockPrefix, missIds);
+            lock.lock();
+            cacheMetrics.lockWait(keyPrefix, System.nanoTime() - begin);
+            try {
+                // 双重判定只是确认其他线程是否已经写回，不重复计入命中率
+                missIds = multiGet(keyPrefix, missIds, clazz, found, generation, expireTime, timeUnit, false);
+                if(!missIds.isEmpty()) {
+                    loadAndWriteBack(keyPrefix, missIds, dbFallBack, idGetter, found, expireTime, timeUnit);
+                }
+            } finally {
+                lock.unlock();
+                cacheMetrics.rebuild(keyPrefix, System.nanoTime() - begin);
+            }
+        }
+
+        // 4.按请求顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            Object value = found.get(id);
+            result.add(value == null || value == NULL_VALUE ? null : clazz.cast(value));
+        }
+        return result;
+    }
+
+    /**
+     * 一次MGET查询Redis，命中的结果放入found，返回仍未命中的id
+     * @param record 是否计入命中率指标
+     */
+    private <R, ID> List<ID> multiGet(String keyPrefix,
+                                      List<ID> ids,
+                                      Class<R> clazz,
+                                      Map<ID, Object> found,
+                                      long generation,
+                                      Long expireTime,
+                                      TimeUnit timeUnit,
+                                      boolean record) {
+        if(ids.isEmpty()) {
+            return ids;
+        }
+        byte[][] keys = new byte[ids.size()][];
+        for (int i = 0; i < ids.size(); i++) {
+            keys[i] = rawKey(keyPrefix + ids.get(i));
+        }
+        List<byte[]> values = stringRedisTemplate.execute(
+                (RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(keys));
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            String key = keyPrefix + ids.get(i);
+            byte[] bytes = values == null ? null : values.get(i);
+            if(bytes != null && bytes.length == 0) {
+                // 命中空值
+                if(record) {
+                    cacheMetrics.request(keyPrefix, CacheMetrics.NULL_HIT);
+                }
+                found.put(ids.get(i), NULL_VALUE);
+                putLocal(key, null, generation, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+                continue;
+            }
+            R r = decode(key, bytes, clazz);
+            if(record) {
+                cacheMetrics.request(keyPrefix, r == null ? CacheMetrics.MISS : CacheMetrics.HIT);
+            }
+            if(r == null) {
+                missIds.add(ids.get(i));
+            } else {
+                found.put(ids.get(i), r);
+                putLocal(key, r, generation, expireTime, timeUnit);
+            }
+        }
+        return missIds;
+    }
+
+    /**
+     * 对缺失的id执行一次数据库批量查询，并通过一次pipeline把结果和空值写回Redis
+     */
+    private <R, ID> void loadAndWriteBack(String keyPrefix,
+                                          List<ID> missIds,
+                                          Function<Collection<ID>, List<R>> dbFallBack,
+                                          Function<R, ID> idGetter,
+                                          Map<ID, Object> found,
+                                          Long expireTime,
+                                          TimeUnit timeUnit) {
+        List<R> dbList = loadFromDb(keyPrefix, dbFallBack, missIds);
+        Map<ID, R> dbMap = new HashMap<>(missIds.size());
+        if(dbList != null) {
+            for (R r : dbList) {
+                dbMap.put(idGetter.apply(r), r);
+            }
+        }
+        Expiration expiration = Expiration.from(expireTime, timeUnit);
+        Expiration nullExpiration = Expiration.from(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : missIds) {
+                R r = dbMap.get(id);
+                if(r == null) {
+                    // 更新缓存空值
+                    cacheMetrics.nullWrite(keyPrefix);
+                    connection.stringCommands().set(rawKey(keyPrefix + id), EMPTY, nullExpiration, RedisStringCommands.SetOption.upsert());
+                } else {
+                    byte[] value = writeCodec.encode(r);
+                    cacheMetrics.payload(keyPrefix, value.length);
+                    connection.stringCommands().set(rawKey(keyPrefix + id), value, expiration, RedisStringCommands.SetOption.upsert());
+                }
+            }
+            return null;
+        });
+        for (ID id : missIds) {
+            R r = dbMap.get(id);
+            found.put(id, r == null ? NULL_VALUE : r);
+        }
+    }
+
+    /**
+     * 按key排序后组合成联锁，保证不同批次以相同顺序加锁
+     */
+    private <ID> RLock getMultiLock(String lockPrefix, List<ID> ids) {
+        if(ids.size() == 1) {
+            return redissonClient.getLock(lockPrefix + ids.get(0));
+        }
+        TreeSet<String> lockKeys = new TreeSet<>();
+        for (ID id : ids) {
+            lockKeys.add(lockPrefix + id);
+        }
+        RLock[] locks = new RLock[lockKeys.size()];
+        int i = 0;
+        for (String lockKey : lockKeys) {
+            locks[i++] = redissonClient.getLock(lockKey);
+        }
+        return redissonClient.getMultiLock(locks);
+    }
+
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] getRaw(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey(key)));
+    }
+
+    /**
+     * 写入原始字节，time为null时不设置过期时间
+     */
+    private void setRaw(String key, byte[] value, Long time, TimeUnit timeUnit) {
+        if(value.length == 0) {
+            cacheMetrics.nullWrite(CacheMetrics.prefixOf(key));
+        } else {
+            cacheMetrics.payload(CacheMetrics.prefixOf(key), value.length);
+        }
+        Expiration expiration = time == null ? Expiration.persistent() : Expiration.from(time, timeUnit);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.stringCommands().set(rawKey(key), value, expiration, RedisStringCommands.SetOption.upsert()));
+    }
+
+    /**
+     * 查询数据库并记录耗时
+     */
+    private <T, R> R loadFromDb(String keyPrefix, Function<T, R> dbFallBack, T arg) {
+        long begin = System.nanoTime();
+        try {
+            return dbFallBack.apply(arg);
+        } finally {
+            cacheMetrics.dbLoad(keyPrefix, System.nanoTime() - begin);
+        }
+    }
+
+    private static CacheCodec codecOf(byte[] bytes) {
+        return BINARY_CODEC.supports(bytes) ? BINARY_CODEC : JSON_CODEC;
+    }
+
+    /**
+     * 解码缓存值。不存在、空值或无法解码（格式与类定义不一致）时返回null，由调用方按未命中处理
+     */
+    private <R> R decode(String key, byte[] bytes, Class<R> clazz) {
+        if(bytes == null || bytes.length == 0) {
+            return null;
+        }
+        try {
+            return codecOf(bytes).decode(bytes, clazz);
+        } catch (RuntimeException e) {
+            log.warn("缓存{}解码失败，按未命中处理", key, e);
+            return null;
+        }
+    }
+
+    private Object getLocal(String key) {
+        // 记录访问频率，热点key优先读本地副本
+        if(hotKeyDetector.record(key)) {
+            Object replica = hotKeyDetector.getReplica(key);
+            if(replica != null) {
+                return replica;
+            }
+        }
+        if(!localCacheEnabled) {
+            return null;
+        }
+        // 不刷新最后访问时间，否则TTL会变成滑动过期，热点key的本地副本永远不会过期
+        return localCache.get(key, false);
+    }
+
+    private void putLocal(String key, Object value, long generation, Long time, TimeUnit timeUnit) {
+        if(invalidateGeneration.get() != generation) {
+            return;
+        }
+        Object localValue = value == null ? NULL_VALUE : value;
+        hotKeyDetector.putReplica(key, localValue);
+        if(!localCacheEnabled) {
+            return;
+        }
+        long ttl = Math.min(TimeUnit.SECONDS.toMillis(localCacheTtlSeconds), timeUnit.toMillis(time));
+        localCache.put(key, localValue, ttl);
+    }
+
+    private void removeLocal(String key) {
+        if(localCacheEnabled) {
+            localCache.remove(key);
+        }
+        hotKeyDetector.invalidate(key);
+    }
+
 }
@@ -0,0 +1,27 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的序列化方式。不同实现写出的字节以首字节区分格式，
+ * 因此滚动发布期间新旧格式可以在Redis中共存，读取时按首字节选择解码器
+ */
+public interface CacheCodec {
+
+    /**
+     * 是否能解码这段字节（根据首字节的格式标识判断）
+     */
+    boolean supports(byte[] bytes);
+
+    byte[] encode(Object value);
+
+    <R> R decode(byte[] bytes, Class<R> clazz);
+
+    /**
+     * 编码逻辑过期的缓存值
+     */
+    byte[] encodeRedisData(RedisData redisData);
+
+    /**
+     * 解码逻辑过期的缓存值，返回的RedisData中data已经是clazz类型
+     */
+    <R> RedisData decodeRedisData(byte[] bytes, Class<R> clazz);
+}
@@ -0,0 +1,90 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CacheClient的指标，全部按缓存key前缀打标签：
+ * <pre>
+ * cache.requests{prefix, result}   读请求结果：local_hit / hit / null_hit / miss / bloom_reject
+ * cache.null.writes{prefix}        写入的空值个数
+ * cache.db.load{prefix}            查询数据库耗时
+ * cache.lock.wait{prefix}          等待重建锁的耗时
+ * cache.rebuild.duration{prefix}   一次重建（加锁、查库、写回）的总耗时
+ * cache.payload.size{prefix}       写入Redis的序列化后字节数
+ * </pre>
+ */
+@Component
+public class CacheMetrics {
+
+    public static final String LOCAL_HIT = "local_hit";
+    public static final String HIT = "hit";
+    public static final String NULL_HIT = "null_hit";
+    public static final String MISS = "miss";
+    public static final String BLOOM_REJECT = "bloom_reject";
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, Counter> requestCounters = new ConcurrentHashMap<>();
+    private final Map<String, Counter> nullWriteCounters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> dbLoadTimers = new ConcurrentHashMap<>();
+    private final Map<String, Timer> lockWaitTimers = new ConcurrentHashMap<>();
+    private final Map<String, Timer> rebuildTimers = new ConcurrentHashMap<>();
+    private final Map<String, DistributionSummary> payloadSummaries = new ConcurrentHashMap<>();
+
+    public void request(String prefix, String result) {
+        requestCounters.computeIfAbsent(prefix + result, k -> Counter.builder("cache.requests")
+                .tag("prefix", prefix)
+                .tag("result", result)
+                .register(meterRegistry)).increment();
+    }
+
+    public void nullWrite(String prefix) {
+        nullWriteCounters.computeIfAbsent(prefix, k -> Counter.builder("cache.null.writes")
+                .tag("prefix", prefix)
+                .register(meterRegistry)).increment();
+    }
+
+    public void dbLoad(String prefix, long nanos) {
+        timer(dbLoadTimers, "cache.db.load", prefix).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void lockWait(String prefix, long nanos) {
+        timer(lockWaitTimers, "cache.lock.wait", prefix).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void rebuild(String prefix, long nanos) {
+        timer(rebuildTimers, "cache.rebuild.duration", prefix).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void payload(String prefix, int bytes) {
+        payloadSummaries.computeIfAbsent(prefix, k -> DistributionSummary.builder("cache.payload.size")
+                .baseUnit("bytes")
+                .tag("prefix", prefix)
+                .publishPercentileHistogram()
+                .register(meterRegistry)).record(bytes);
+    }
+
+    /**
+     * 从完整的key中取出前缀，例如 cache:shop:1 -> cache:shop:
+     */
+    public static String prefixOf(String key) {
+        return key.substring(0, key.lastIndexOf(':') + 1);
+    }
+
+    private Timer timer(Map<String, Timer> timers, String name, String prefix) {
+        return timers.computeIfAbsent(prefix, k -> Timer.builder(name)
+                .tag("prefix", prefix)
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+    }
+}
@@ -0,0 +1,247 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 缓存重建调度器，替代各处自建的无界线程池：
+ * 队列有界；同一个key在队列中或正在重建时不会重复提交，重复提交只会提高它的优先级，
+ * 越热的key（被重复请求得越多）越先重建；队列满时按溢出策略处理，不会因为数据库变慢在堆里无限堆积任务。
+ * 读请求提高优先级只是对任务的计数器加一，不加锁；工作线程取任务时才按当前计数挑选最热的任务，
+ * 队列有界且重建本身要查数据库，取任务时的线性扫描可以忽略
+ */
+@Slf4j
+@Component
+public class CacheRebuildScheduler {
+
+    public enum OverflowPolicy {
+        /**
+         * 拒绝新任务，调用方继续返回旧值，等下次过期检查时再尝试
+         */
+        SERVE_STALE,
+        /**
+         * 丢弃队列中最冷的任务，为新任务腾出位置
+         */
+        DROP_COLDEST
+    }
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.cache.rebuild.threads:10}")
+    private int threads;
+
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int queueCapacity;
+
+    @Value("${hmdp.cache.rebuild.overflow-policy:SERVE_STALE}")
+    private OverflowPolicy overflowPolicy;
+
+    /**
+     * 排队中的任务，无序，由lock保护
+     */
+    private final List<RebuildTask> queue = new ArrayList<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * 排队中或正在执行的任务，用于按key去重
+     */
+    private final Map<String, RebuildTask> pending = new ConcurrentHashMap<>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private Timer rebuildTimer;
+    private Timer waitTimer;
+    private Counter rejectedCounter;
+    private Counter droppedCounter;
+    private Counter mergedCounter;
+
+    @PostConstruct
+    private void init() {
+        Gauge.builder("cache.rebuild.queue.depth", this, CacheRebuildScheduler::queueSize).register(meterRegistry);
+        Gauge.builder("cache.rebuild.in.flight", pending, Map::size).register(meterRegistry);
+        rebuildTimer = Timer.builder("cache.rebuild.latency").register(meterRegistry);
+        waitTimer = Timer.builder("cache.rebuild.queue.wait").register(meterRegistry);
+        rejectedCounter = Counter.builder("cache.rebuild.rejected").register(meterRegistry);
+        droppedCounter = Counter.builder("cache.rebuild.dropped").register(meterRegistry);
+        mergedCounter = Counter.builder("cache.rebuild.merged").register(meterRegistry);
+
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::work, "cache-rebuild-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * 如果key已经在排队或重建中，提高其优先级并返回true，调用方无需再抢锁提交
+     */
+    public boolean touch(String key) {
+        RebuildTask task = pending.get(key);
+        if(task == null) {
+            return false;
+        }
+        // 已被取走执行的任务计数不再有影响
+        task.hits.incrementAndGet();
+        mergedCounter.increment();
+        return true;
+    }
+
+    /**
+     * 提交重建任务
+     * @param onDrop 任务被拒绝、丢弃或与已有任务合并时的回调（例如释放重建锁）
+     * @return 是否被接受（新加入队列或与已有任务合并）
+     */
+    public boolean submit(String key, Runnable task, Runnable onDrop) {
+        lock.lock();
+        try {
+            if(touch(key)) {
+                // 已有任务会完成重建，调用方刚抢到的锁不会再有人释放（已有任务可能已经解锁、只是还没移出pending），这里释放
+                onDrop.run();
+                return true;
+            }
+            if(queue.size() >= queueCapacity) {
+                if(overflowPolicy == OverflowPolicy.SERVE_STALE) {
+                    rejectedCounter.increment();
+                    onDrop.run();
+                    return false;
+                }
+                int coldestIndex = select(false);
+                if(coldestIndex >= 0) {
+                    RebuildTask coldest = removeAt(coldestIndex);
+                    pending.remove(coldest.key, coldest);
+                    droppedCounter.increment();
+                    coldest.onDrop.run();
+                }
+            }
+            RebuildTask rebuildTask = new RebuildTask(key, task, onDrop, sequence.incrementAndGet());
+            pending.put(key, rebuildTask);
+            queue.add(rebuildTask);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int queueSize() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 按任务当前的请求次数挑选最热（hottest为true）或最冷的任务，返回下标，队列为空时返回-1。调用方需持有lock
+     */
+    private int select(boolean hottest) {
+        int index = -1;
+        for (int i = 0; i < queue.size(); i++) {
+            if(index < 0) {
+                index = i;
+                continue;
+            }
+            int c = queue.get(i).compareTo(queue.get(index));
+            if(hottest ? c < 0 : c > 0) {
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * 队列无序，用最后一个任务填补被移出的位置。调用方需持有lock
+     */
+    private RebuildTask removeAt(int index) {
+        RebuildTask task = queue.get(index);
+        RebuildTask last = queue.remove(queue.size() - 1);
+        if(last != task) {
+            queue.set(index, last);
+        }
+        return task;
+    }
+
+    private RebuildTask take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while(queue.isEmpty()) {
+                notEmpty.await();
+            }
+            return removeAt(select(true));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void work() {
+        while(true) {
+            RebuildTask task;
+            try {
+                task = take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            waitTimer.record(System.nanoTime() - task.submitNanos, TimeUnit.NANOSECONDS);
+            long begin = System.nanoTime();
+            try {
+                task.task.run();
+            } catch (Exception e) {
+                log.error("缓存{}重建失败", task.key, e);
+            } finally {
+                pending.remove(task.key, task);
+                rebuildTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private static class RebuildTask implements Comparable<RebuildTask> {
+        private final String key;
+        private final Runnable task;
+        private final Runnable onDrop;
+        private final long seq;
+        private final long submitNanos = System.nanoTime();
+        private final AtomicInteger hits = new AtomicInteger(1);
+
+        RebuildTask(String key, Runnable task, Runnable onDrop, long seq) {
+            this.key = key;
+            this.task = task;
+            this.onDrop = onDrop;
+            this.seq = seq;
+        }
+
+        /**
+         * 请求次数多的排在前面，次数相同时先提交的排在前面
+         */
+        @Override
+        public int compareTo(RebuildTask o) {
+            int h = hits.get(), oh = o.hits.get();
+            if(h != oh) {
+                return Integer.compare(oh, h);
+            }
+            return Long.compare(seq, o.seq);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 热点key探测：在读路径上按比例抽样，用带衰减的Count-Min Sketch估算每个key的访问频率，
+ * 超过阈值的key提升为热点，在本地保存一份短期副本，减轻单个Redis节点的压力；
+ * 每个衰减周期把所有计数减半，热度降到阈值一半以下的key被降级并删除本地副本
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    private static final int DEPTH = 4;
+
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.cache.hotkey.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 抽样比例，0.1表示每10次读取记录1次
+     */
+    @Value("${hmdp.cache.hotkey.sample-ratio:0.1}")
+    private double sampleRatio;
+
+    /**
+     * 一个衰减周期内抽样计数达到该值即视为热点
+     */
+    @Value("${hmdp.cache.hotkey.threshold:50}")
+    private int threshold;
+
+    @Value("${hmdp.cache.hotkey.decay-seconds:5}")
+    private long decaySeconds;
+
+    @Value("${hmdp.cache.hotkey.width:4096}")
+    private int width;
+
+    /**
+     * 本地副本的存活时间，副本同样会被失效广播清除
+     */
+    @Value("${hmdp.cache.hotkey.replica-ttl-millis:3000}")
+    private long replicaTtlMillis;
+
+    @Value("${hmdp.cache.hotkey.max-hot-keys:100}")
+    private int maxHotKeys;
+
+    private AtomicIntegerArray[] sketch;
+
+    /**
+     * 当前热点key -> 被提升的时间
+     */
+    private final Map<String, Long> hotKeys = new ConcurrentHashMap<>();
+
+    private LRUCache<String, Object> replicas;
+
+    private static final ScheduledExecutorService DECAY_EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "hot-key-decay");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    private void init() {
+        if(!enabled) {
+            return;
+        }
+        sketch = new AtomicIntegerArray[DEPTH];
+        for (int i = 0; i < DEPTH; i++) {
+            sketch[i] = new AtomicIntegerArray(width);
+        }
+        replicas = CacheUtil.newLRUCache(maxHotKeys, replicaTtlMillis);
+        Gauge.builder("cache.hotkey.count", hotKeys, Map::size).register(meterRegistry);
+        DECAY_EXECUTOR.scheduleWithFixedDelay(this::decay, decaySeconds, decaySeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 记录一次读取（按比例抽样），返回该key当前是否为热点
+     */
+    public boolean record(String key) {
+        if(!enabled) {
+            return false;
+        }
+        if(ThreadLocalRandom.current().nextDouble() < sampleRatio) {
+            int estimate = Integer.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                estimate = Math.min(estimate, sketch[i].incrementAndGet(index(key, i)));
+            }
+            if(estimate >= threshold && hotKeys.size() < maxHotKeys && hotKeys.putIfAbsent(key, System.currentTimeMillis()) == null) {
+                log.info("热点key提升：{}", key);
+            }
+        }
+        return hotKeys.containsKey(key);
+    }
+
+    public Object getReplica(String key) {
+        if(!enabled || hotKeys.isEmpty()) {
+            return null;
+        }
+        // 不刷新访问时间，副本按固定TTL过期
+        return replicas.get(key, false);
+    }
+
+    public void putReplica(String key, Object value) {
+        if(enabled && hotKeys.containsKey(key)) {
+            replicas.put(key, value);
+        }
+    }
+
+    public void invalidate(String key) {
+        if(enabled) {
+            replicas.remove(key);
+        }
+    }
+
+    /**
+     * 当前热点key及其估算的抽样计数
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("threshold", threshold);
+        result.put("sampleRatio", sampleRatio);
+        Map<String, Object> keys = new LinkedHashMap<>();
+        if(enabled) {
+            hotKeys.forEach((key, promotedAt) -> {
+                Map<String, Object> info = new LinkedHashMap<>();
+                info.put("estimate", estimate(key));
+                info.put("promotedAt", promotedAt);
+                keys.put(key, info);
+            });
+        }
+        result.put("hotKeys", keys);
+        return result;
+    }
+
+    private void decay() {
+        try {
+            for (AtomicIntegerArray row : sketch) {
+                for (int j = 0; j < row.length(); j++) {
+                    int v;
+                    do {
+                        v = row.get(j);
+                    } while(v != 0 && !row.compareAndSet(j, v, v >>> 1));
+                }
+            }
+            // 热度降到阈值一半以下的key降级
+            hotKeys.keySet().removeIf(key -> {
+                if(estimate(key) >= threshold / 2) {
+                    return false;
+                }
+                replicas.remove(key);
+                log.info("热点key降级：{}", key);
+                return true;
+            });
+        } catch (Exception e) {
+            log.error("热点key衰减失败", e);
+        }
+    }
+
+    private int estimate(String key) {
+        int estimate = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            estimate = Math.min(estimate, sketch[i].get(index(key, i)));
+        }
+        return estimate;
+    }
+
+    private int index(String key, int row) {
+        int h = key.hashCode() * SEEDS[row];
+        h ^= h >>> 16;
+        return (h & 0x7FFFFFFF) % width;
+    }
+}
@@ -0,0 +1,24 @@
+package com.hmdp.utils;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Map;
+
+/**
+ * 查看当前节点的热点key：GET /actuator/hotkeys
+ */
+@Component
+@Endpoint(id = "hotkeys")
+public class HotKeyEndpoint {
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @ReadOperation
+    public Map<String, Object> hotKeys() {
+        return hotKeyDetector.snapshot();
+    }
+}
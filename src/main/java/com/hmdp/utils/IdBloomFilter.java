@@ -0,0 +1,305 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RBloomFilter;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 基于Redis位图（Redisson RBloomFilter）的id布隆过滤器，防止随机id穿透到Redis和数据库。
+ * 启动时如果过滤器还没有构建完成，由抢到锁的节点从数据库分页加载全部id，构建完成前不做拦截。
+ * 定时检查Redis中的过滤器和构建完成标记，Redis被清空或key被淘汰后退回不拦截并重新构建
+ */
+@Slf4j
+@Component
+public class IdBloomFilter {
+
+    public static final String SHOP = "shop";
+    public static final String BLOG = "blog";
+    public static final String USER = "user";
+
+    private static final int PAGE_SIZE = 1000;
+
+    /**
+     * 缓存key前缀 -> 过滤器名称，CacheClient按前缀查找对应的过滤器
+     */
+    private static final Map<String, String> KEY_PREFIX_FILTERS = new HashMap<>();
+    static {
+        KEY_PREFIX_FILTERS.put(RedisConstants.CACHE_SHOP_KEY, SHOP);
+        KEY_PREFIX_FILTERS.put(RedisConstants.CACHE_USER_KEY, USER);
+    }
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private BlogMapper blogMapper;
+
+    @Resource
+    private UserMapper userMapper;
+
+    @Value("${hmdp.bloom.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    @Value("${hmdp.bloom.false-probability:0.01}")
+    private double falseProbability;
+
+    @Value("${hmdp.bloom.ready-check-seconds:30}")
+    private long readyCheckSeconds;
+
+    private final Map<String, RBloomFilter<String>> filters = new ConcurrentHashMap<>();
+
+    private final Map<String, Function<Long, List<Object>>> loaders = new HashMap<>();
+
+    /**
+     * 构建完成的过滤器，构建完成前mightContain一律返回true
+     */
+    private final Map<String, Boolean> readyFilters = new ConcurrentHashMap<>();
+
+    /**
+     * 已提交构建任务、还没有结束的过滤器，避免重复提交
+     */
+    private final Map<String, Boolean> buildingFilters = new ConcurrentHashMap<>();
+
+    private final ExecutorService buildExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "bloom-filter-build");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * count()是对整个位图的BITCOUNT，定时采样缓存，不在每次抓取指标时执行
+     */
+    private static final long COUNT_REFRESH_INTERVAL_SECONDS = 60;
+
+    /**
+     * 过滤器名称 -> 最近一次采样的元素个数
+     */
+    private final Map<String, Long> elementCounts = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService countScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "bloom-filter-count");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    private void init() {
+        if(!enabled) {
+            return;
+        }
+        loaders.put(SHOP, lastId -> shopMapper.selectObjs(idPage(lastId)));
+        loaders.put(BLOG, lastId -> blogMapper.selectObjs(idPage(lastId)));
+        loaders.put(USER, lastId -> userMapper.selectObjs(idPage(lastId)));
+
+        loaders.forEach((name, loader) -> {
+            RBloomFilter<String> filter = redissonClient.getBloomFilter(RedisConstants.BLOOM_FILTER_KEY + name, StringCodec.INSTANCE);
+            filters.put(name, filter);
+            registerMetrics(name, filter);
+            submitBuild(name);
+        });
+        countScheduler.scheduleWithFixedDelay(this::refreshCounts, 0, COUNT_REFRESH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        countScheduler.scheduleWithFixedDelay(this::checkReady, readyCheckSeconds, readyCheckSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        countScheduler.shutdownNow();
+        buildExecutor.shutdownNow();
+    }
+
+    private void submitBuild(String name) {
+        if(buildingFilters.putIfAbsent(name, true) != null) {
+            return;
+        }
+        buildExecutor.submit(() -> {
+            try {
+                buildIfAbsent(name, filters.get(name), loaders.get(name));
+            } finally {
+                buildingFilters.remove(name);
+            }
+        });
+    }
+
+    /**
+     * Redis被清空或过滤器、构建完成标记被淘汰时，本节点退回不拦截并重新构建；构建失败的过滤器在这里重试
+     */
+    private void checkReady() {
+        filters.forEach((name, filter) -> {
+            if(!readyFilters.containsKey(name)) {
+                submitBuild(name);
+                return;
+            }
+            try {
+                if(!isBuilt(name, filter)) {
+                    markNotReady(name);
+                }
+            } catch (Exception e) {
+                log.warn("检查布隆过滤器{}状态失败", name, e);
+            }
+        });
+    }
+
+    private void markNotReady(String name) {
+        if(readyFilters.remove(name) != null) {
+            log.warn("布隆过滤器{}在Redis中已失效，重建完成前不做拦截", name);
+            submitBuild(name);
+        }
+    }
+
+    private void refreshCounts() {
+        filters.forEach((name, filter) -> {
+            try {
+                elementCounts.put(name, filter.count());
+            } catch (Exception e) {
+                log.warn("采集布隆过滤器{}元素个数失败", name, e);
+            }
+        });
+    }
+
+    /**
+     * id可能存在时返回true；返回false时id一定不存在
+     */
+    public boolean mightContain(String name, Object id) {
+        RBloomFilter<String> filter = filters.get(name);
+        if(filter == null || !readyFilters.containsKey(name)) {
+            return true;
+        }
+        try {
+            return filter.contains(String.valueOf(id));
+        } catch (Exception e) {
+            // 过滤器的配置被清除时contains会抛异常，放行并重新构建
+            log.warn("查询布隆过滤器{}失败", name, e);
+            markNotReady(name);
+            return true;
+        }
+    }
+
+    /**
+     * 按缓存key前缀判断，没有对应过滤器的前缀一律返回true
+     */
+    public boolean mightContainKey(String keyPrefix, Object id) {
+        String name = KEY_PREFIX_FILTERS.get(keyPrefix);
+        return name == null || mightContain(name, id);
+    }
+
+    /**
+     * 新增数据后调用，构建期间也要写入，保证构建完成后不漏掉新id
+     */
+    public void add(String name, Object id) {
+        RBloomFilter<String> filter = filters.get(name);
+        if(filter == null) {
+            return;
+        }
+        try {
+            filter.add(String.valueOf(id));
+        } catch (Exception e) {
+            // 过滤器失效期间写入失败，由重新构建从数据库补齐
+            log.warn("写入布隆过滤器{}失败", name, e);
+            markNotReady(name);
+        }
+    }
+
+    private void buildIfAbsent(String name, RBloomFilter<String> filter, Function<Long, List<Object>> loader) {
+        RLock lock = redissonClient.getLock(RedisConstants.BLOOM_FILTER_KEY + name + ":build");
+        try {
+            while(!isBuilt(name, filter)) {
+                // 只有一个节点负责构建，其他节点等待构建完成
+                if(!lock.tryLock()) {
+                    TimeUnit.SECONDS.sleep(5);
+                    continue;
+                }
+                try {
+                    if(isBuilt(name, filter)) {
+                        break;
+                    }
+                    // Redis被清空后过滤器的配置也不存在了，重新初始化
+                    filter.tryInit(expectedInsertions, falseProbability);
+                    long count = 0, lastId = 0;
+                    List<Object> ids;
+                    do {
+                        ids = loader.apply(lastId);
+                        for (Object id : ids) {
+                            filter.add(String.valueOf(id));
+                            lastId = Long.parseLong(String.valueOf(id));
+                        }
+                        count += ids.size();
+                    } while(ids.size() == PAGE_SIZE);
+                    redissonClient.getBucket(readyKey(name), StringCodec.INSTANCE).set(String.valueOf(count));
+                    log.info("布隆过滤器{}构建完成，共{}个id", name, count);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            readyFilters.put(name, true);
+        } catch (Exception e) {
+            log.error("布隆过滤器{}构建失败", name, e);
+        }
+    }
+
+    /**
+     * 构建完成标记记录构建时的id个数，不为0时位图也必须存在，位图被单独淘汰时同样视为未构建
+     */
+    private boolean isBuilt(String name, RBloomFilter<String> filter) {
+        String count = redissonClient.<String>getBucket(readyKey(name), StringCodec.INSTANCE).get();
+        return count != null && ("0".equals(count) || filter.isExists());
+    }
+
+    private static String readyKey(String name) {
+        return RedisConstants.BLOOM_FILTER_KEY + name + ":ready";
+    }
+
+    private static <T> QueryWrapper<T> idPage(long lastId) {
+        return new QueryWrapper<T>().select("id").gt("id", lastId).orderByAsc("id").last("limit " + PAGE_SIZE);
+    }
+
+    private void registerMetrics(String name, RBloomFilter<String> filter) {
+        Gauge.builder("bloom.filter.false.probability.expected", filter, RBloomFilter::getFalseProbability)
+                .tag("filter", name)
+                .register(meterRegistry);
+        // 按当前元素个数估算的实际误判率：(1 - e^(-k*n/m))^k
+        Gauge.builder("bloom.filter.false.probability.estimated", filter, f -> {
+                    double k = f.getHashIterations(), m = f.getSize(), n = elementCounts.getOrDefault(name, 0L);
+                    return Math.pow(1 - Math.exp(-k * n / m), k);
+                })
+                .tag("filter", name)
+                .register(meterRegistry);
+        Gauge.builder("bloom.filter.memory.bytes", filter, f -> f.getSize() / 8.0)
+                .tag("filter", name)
+                .register(meterRegistry);
+        Gauge.builder("bloom.filter.elements", elementCounts, counts -> counts.getOrDefault(name, 0L))
+                .tag("filter", name)
+                .register(meterRegistry);
+    }
+}
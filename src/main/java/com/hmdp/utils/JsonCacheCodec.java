@@ -0,0 +1,44 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+/**
+ * 原有的JSON格式，没有格式头，首字节是'{'，兼容升级前写入的缓存
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public boolean supports(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == '{';
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> clazz) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), clazz);
+    }
+
+    @Override
+    public byte[] encodeRedisData(RedisData redisData) {
+        return encode(redisData);
+    }
+
+    @Override
+    public <R> RedisData decodeRedisData(byte[] bytes, Class<R> clazz) {
+        // 只解析一次JSON，直接从JSONObject中取出过期时间和数据
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(json.get("expireTime", LocalDateTime.class));
+        redisData.setData(json.getBean("data", clazz));
+        redisData.setDelta(json.getLong("delta"));
+        return redisData;
+    }
+}
@@ -0,0 +1,152 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.OrderStatus;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.VoucherOrder;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 秒杀订单的最终状态通知。下单接口在订单落库前就返回订单id，
+ * 订单消费者在事务提交后把状态写入 seckill:order:status:{orderId}（值为 状态:userId），并通过topic广播给所有节点；
+ * 查询状态的长轮询请求先挂在本节点上，收到广播时立即返回，超时返回PENDING，整个过程不查询数据库
+ */
+@Slf4j
+@Component
+public class OrderStatusNotifier {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.seckill.order-status.ttl-minutes:30}")
+    private long ttlMinutes;
+
+    @Value("${hmdp.seckill.order-status.long-poll-timeout-millis:10000}")
+    private long longPollTimeoutMillis;
+
+    /**
+     * 本节点上等待订单状态的请求
+     */
+    private final Map<Long, List<Waiter>> waiters = new ConcurrentHashMap<>();
+
+    private RTopic topic;
+
+    private static class Waiter {
+        private final Long userId;
+        private final DeferredResult<Result> result;
+
+        Waiter(Long userId, DeferredResult<Result> result) {
+            this.userId = userId;
+            this.result = result;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        topic = redissonClient.getTopic(RedisConstants.SECKILL_ORDER_STATUS_TOPIC, StringCodec.INSTANCE);
+        topic.addListener(String.class, (channel, message) -> onMessage(message));
+        Gauge.builder("seckill.order.status.waiters", waiters, Map::size).register(meterRegistry);
+    }
+
+    /**
+     * 订单消费者在事务提交后调用：一个pipeline写入一批订单的状态，广播一条消息。
+     * 失败只记录日志，客户端长轮询超时后重新读取
+     */
+    public void publish(List<VoucherOrder> orders, String status) {
+        if(orders.isEmpty()) {
+            return;
+        }
+        try {
+            Expiration expiration = Expiration.from(ttlMinutes, TimeUnit.MINUTES);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (VoucherOrder order : orders) {
+                    connection.stringCommands().set(bytes(RedisConstants.SECKILL_ORDER_STATUS_KEY + order.getId()),
+                            bytes(status + ":" + order.getUserId()), expiration, RedisStringCommands.SetOption.UPSERT);
+                }
+                return null;
+            });
+            // 状态:orderId:userId,orderId:userId
+            topic.publish(status + ":" + orders.stream()
+                    .map(order -> order.getId() + ":" + order.getUserId())
+                    .collect(Collectors.joining(",")));
+        } catch (Exception e) {
+            log.warn("发布{}个订单的状态{}失败", orders.size(), status, e);
+        }
+    }
+
+    /**
+     * 查询订单状态，还没有结果时挂起请求，直到订单消费者发布状态或者超时
+     */
+    public DeferredResult<Result> await(Long orderId, Long userId) {
+        DeferredResult<Result> result = new DeferredResult<>(longPollTimeoutMillis,
+                Result.ok(OrderStatus.of(orderId, OrderStatus.PENDING)));
+        Waiter waiter = new Waiter(userId, result);
+        waiters.computeIfAbsent(orderId, id -> new CopyOnWriteArrayList<>()).add(waiter);
+        result.onCompletion(() -> waiters.computeIfPresent(orderId, (id, list) -> {
+            list.remove(waiter);
+            return list.isEmpty() ? null : list;
+        }));
+        // 先挂起再读状态，避免读之后、挂起之前发布的状态被错过
+        String record = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_ORDER_STATUS_KEY + orderId);
+        if(StrUtil.isNotEmpty(record)) {
+            int i = record.indexOf(':');
+            complete(waiter, orderId, record.substring(0, i), Long.valueOf(record.substring(i + 1)));
+        }
+        return result;
+    }
+
+    private void onMessage(String message) {
+        int i = message.indexOf(':');
+        String status = message.substring(0, i);
+        for (String entry : message.substring(i + 1).split(",")) {
+            int j = entry.indexOf(':');
+            Long orderId = Long.valueOf(entry.substring(0, j));
+            List<Waiter> list = waiters.get(orderId);
+            if(list == null) {
+                continue;
+            }
+            Long userId = Long.valueOf(entry.substring(j + 1));
+            list.forEach(waiter -> complete(waiter, orderId, status, userId));
+        }
+    }
+
+    private static void complete(Waiter waiter, Long orderId, String status, Long userId) {
+        if(!waiter.userId.equals(userId)) {
+            waiter.result.setResult(Result.fail("订单不存在"));
+            return;
+        }
+        waiter.result.setResult(Result.ok(OrderStatus.of(orderId, status)));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
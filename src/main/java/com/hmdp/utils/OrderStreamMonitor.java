@@ -0,0 +1,109 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 订单消息流的积压指标，定时采集，所有订单流求和：
+ * <pre>
+ * seckill.order.pending    已投递未ACK的消息数
+ * seckill.order.lag        还没有投递给消费者的消息数（每个订单流最多统计LAG_SCAN_LIMIT条）
+ * seckill.order.dlq.size   死信流中的消息数
+ * </pre>
+ */
+@Slf4j
+@Component
+public class OrderStreamMonitor {
+
+    private static final long REFRESH_INTERVAL_SECONDS = 10;
+
+    /**
+     * Redis 7之前XINFO GROUPS没有lag字段，用XRANGE数last-delivered-id之后的消息，限制每个订单流扫描的条数
+     */
+    private static final int LAG_SCAN_LIMIT = 10000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private OrderStreamRegistry orderStreamRegistry;
+
+    private volatile long pending;
+
+    private volatile long lag;
+
+    private volatile long deadLetters;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "order-stream-monitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    private void init() {
+        Gauge.builder("seckill.order.pending", this, m -> m.pending).register(meterRegistry);
+        Gauge.builder("seckill.order.lag", this, m -> m.lag).register(meterRegistry);
+        Gauge.builder("seckill.order.dlq.size", this, m -> m.deadLetters).register(meterRegistry);
+        scheduler.scheduleWithFixedDelay(this::refresh, REFRESH_INTERVAL_SECONDS, REFRESH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    private void refresh() {
+        try {
+            long pending = 0, lag = 0;
+            for (String streamKey : orderStreamRegistry.streams()) {
+                if(!Boolean.TRUE.equals(stringRedisTemplate.hasKey(streamKey))) {
+                    continue;
+                }
+                StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(streamKey);
+                for (int i = 0; i < groups.size(); i++) {
+                    StreamInfo.XInfoGroup group = groups.get(i);
+                    if(!RedisConstants.SECKILL_ORDER_GROUP.equals(group.groupName())) {
+                        continue;
+                    }
+                    pending += group.pendingCount();
+                    lag += lag(streamKey, group.lastDeliveredId());
+                }
+            }
+            Long size = stringRedisTemplate.opsForStream().size(RedisConstants.SECKILL_ORDER_DLQ_KEY);
+            this.pending = pending;
+            this.lag = lag;
+            this.deadLetters = size == null ? 0 : size;
+        } catch (Exception e) {
+            log.warn("采集订单消息流指标失败", e);
+        }
+    }
+
+    private long lag(String streamKey, String lastDeliveredId) {
+        // xrange seckill:{v123}:orders:p0 {last-delivered-id} + count {limit}，结果包含last-delivered-id本身
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(streamKey,
+                Range.rightUnbounded(Range.Bound.inclusive(lastDeliveredId)), RedisZSetCommands.Limit.limit().count(LAG_SCAN_LIMIT + 1));
+        if(records == null || records.isEmpty()) {
+            return 0;
+        }
+        return records.get(0).getId().getValue().equals(lastDeliveredId) ? records.size() - 1 : records.size();
+    }
+}
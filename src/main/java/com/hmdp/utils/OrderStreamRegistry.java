@@ -0,0 +1,58 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * 订单流注册表：每个秒杀券（分片模式下每个分片）按userId分成若干个订单流分区 seckill:{v123}:orders:p0，
+ * 预热秒杀券时注册到 seckill:streams，消费者、监控和超时取消从这里发现所有订单流
+ */
+@Slf4j
+@Component
+public class OrderStreamRegistry {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 注册秒杀券各分片的所有订单流分区，并创建消费者组
+     */
+    public void register(Long voucherId, int shards, int partitions) {
+        for (String slot : SeckillKeys.slots(voucherId, shards)) {
+            for (int p = 0; p < partitions; p++) {
+                register(SeckillKeys.ordersKey(slot, p, partitions));
+            }
+        }
+    }
+
+    private void register(String streamKey) {
+        createGroupIfAbsent(streamKey);
+        stringRedisTemplate.opsForSet().add(RedisConstants.SECKILL_STREAMS_KEY, streamKey);
+    }
+
+    public Set<String> streams() {
+        Set<String> streams = stringRedisTemplate.opsForSet().members(RedisConstants.SECKILL_STREAMS_KEY);
+        return streams == null ? Collections.emptySet() : streams;
+    }
+
+    /**
+     * xgroup create seckill:{v123}:orders:p0 g1 0 mkstream，组已存在时忽略
+     */
+    public void createGroupIfAbsent(String streamKey) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    streamKey.getBytes(StandardCharsets.UTF_8), RedisConstants.SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            // BUSYGROUP Consumer Group name already exists
+            log.debug("消费者组{}已存在", streamKey);
+        }
+    }
+}
@@ -11,12 +11,36 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    public static final String CACHE_INVALIDATE_TOPIC = "cache:invalidate";
+
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final String LOCK_USER_KEY = "lock:user:";
+
+    public static final String BLOOM_FILTER_KEY = "bloom:";
+
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shop_type:";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_KEY_PREFIX = "seckill:";
+    public static final String LOCK_SECKILL_ROOM_KEY = "lock:seckill:room";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_PARTITIONS_KEY = "seckill:partitions:";
+    public static final String SECKILL_VOUCHER_STATE_TOPIC = "seckill:voucher:state";
+    public static final String SECKILL_STREAMS_KEY = "seckill:streams";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DLQ_KEY = "stream.orders.dlq";
+    public static final String SECKILL_ORDER_CONSUMERS_KEY = "stream.orders:consumers";
+    public static final String LOCK_ORDER_STREAM_KEY = "lock:";
+    public static final String SECKILL_RECONCILE_CURSOR_KEY = "seckill:reconcile:cursor";
+    public static final String LOCK_SECKILL_RECONCILE_KEY = "lock:seckill:reconcile";
+    public static final String SECKILL_CAMPAIGNS_KEY = "seckill:campaigns";
+    public static final String LOCK_SECKILL_CAMPAIGN_KEY = "lock:seckill:campaign";
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:order:status:";
+    public static final String SECKILL_ORDER_STATUS_TOPIC = "seckill:order:status";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
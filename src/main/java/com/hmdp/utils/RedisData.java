@@ -8,4 +8,8 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    /**
+     * 上一次重建缓存耗时（毫秒），用于概率提前重建
+     */
+    private Long delta;
 }
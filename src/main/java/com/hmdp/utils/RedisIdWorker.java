@@ -1,23 +1,57 @@
 package com.hmdp.utils;
 
-import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 
+@Slf4j
 @Component
-@RequiredArgsConstructor
 public class RedisIdWorker {
 
     private static final long BEGIN_TIMESTAMP = 1734912000L;
     private static final int COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    /**
+     * 当前号段剩余不足该比例时异步预取下一个号段
+     */
+    private static final double PREFETCH_RATIO = 0.2;
+
+    private static final ExecutorService PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private final StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 号段大小，0表示每个id执行一次INCR
+     */
+    private final int segmentStep;
+
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate,
+                         @Value("${hmdp.id.segment-step:0}") int segmentStep) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.segmentStep = segmentStep;
+    }
+
     public long nextId(String keyPrefix) {
         // 1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
@@ -25,13 +59,106 @@ public class RedisIdWorker {
         long timeStamp = nowSeconds - BEGIN_TIMESTAMP;
 
         // 2.生成序列号
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        Long count = stringRedisTemplate.opsForValue().increment(String.format("icr:%s:%s", keyPrefix, date));
+        long count;
+        if(segmentStep > 0) {
+            count = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(now.toLocalDate());
+        } else {
+            count = stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, now.toLocalDate()));
+        }
 
         // 3.拼接并返回
         return (timeStamp << COUNT_BITS) | count;
     }
 
+    private static String counterKey(String keyPrefix, LocalDate date) {
+        return "icr:" + keyPrefix + ":" + date.format(DATE_FORMATTER);
+    }
+
+    /**
+     * 号段：用一次INCRBY从当天的计数器中预留 [max - step + 1, max]，在本地用原子计数器分配
+     */
+    private static class Segment {
+        private final LocalDate date;
+        private final AtomicLong next;
+        private final long max;
+
+        Segment(LocalDate date, long max, int step) {
+            this.date = date;
+            this.max = max;
+            this.next = new AtomicLong(max - step + 1);
+        }
+    }
+
+    /**
+     * 每个业务前缀一个双缓冲：当前号段用到一定比例时异步预取下一个号段，用完后直接切换，
+     * 大多数情况下分配id不需要访问Redis。号段属于某一天的计数器，日期变化后丢弃旧号段，
+     * 保证序列号只和同一天的时间戳组合，与逐个INCR生成的id不会冲突
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile Segment prefetched;
+        private final AtomicBoolean prefetching = new AtomicBoolean();
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long next(LocalDate today) {
+            while(true) {
+                Segment segment = current;
+                if(segment == null || !segment.date.equals(today)) {
+                    switchSegment(segment, today);
+                    continue;
+                }
+                long value = segment.next.getAndIncrement();
+                if(value <= segment.max) {
+                    if(segment.max - value < segmentStep * PREFETCH_RATIO) {
+                        prefetch(today);
+                    }
+                    return value;
+                }
+                // 当前号段已用完
+                switchSegment(segment, today);
+            }
+        }
+
+        private synchronized void switchSegment(Segment exhausted, LocalDate today) {
+            if(current != exhausted) {
+                // 其他线程已经切换过
+                return;
+            }
+            Segment next = prefetched;
+            prefetched = null;
+            current = next != null && next.date.equals(today) ? next : fetch(today);
+        }
+
+        private void prefetch(LocalDate today) {
+            if(prefetched != null || !prefetching.compareAndSet(false, true)) {
+                return;
+            }
+            PREFETCH_EXECUTOR.execute(() -> {
+                try {
+                    Segment segment = fetch(today);
+                    synchronized (this) {
+                        if(prefetched == null) {
+                            prefetched = segment;
+                        }
+                    }
+                } catch (Exception e) {
+                    log.warn("预取号段{}失败", keyPrefix, e);
+                } finally {
+                    prefetching.set(false);
+                }
+            });
+        }
+
+        private Segment fetch(LocalDate date) {
+            Long max = stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, date), segmentStep);
+            return new Segment(date, max, segmentStep);
+        }
+    }
+
     public static void main(String[] args) {
         LocalDateTime time = LocalDateTime.of(2024, 12, 23, 0, 0, 0);
         long second = time.toEpochSecond(ZoneOffset.UTC);
@@ -0,0 +1,335 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀活动的预热和清理，集群中只有持有活动锁的节点执行：
+ * 1. 秒杀开始前prewarm-minutes分钟内，在Redis中创建库存、已购用户和订单流，加载下单路径上的Lua脚本，
+ *    并通知所有节点加载秒杀券状态，开抢的第一秒不需要建key、EVAL回退或查询数据库；
+ * 2. 进行中的秒杀券库存key不存在时（Redis重启或清空）按数据库恢复：库存为tb_seckill_voucher.stock，
+ *    已购用户为未取消订单的用户。只用SETNX创建key，不会覆盖已有的库存；
+ * 3. 秒杀结束后删除库存和准入计数，超时队列为空、订单流消费完后注销订单流。
+ *    已购用户key由EXPIREAT在保留期后自动删除，订单流也在保留期后删除
+ */
+@Slf4j
+@Component
+public class SeckillCampaignScheduler {
+
+    private static final String BUYER_SET_BITMAP = "bitmap";
+
+    /**
+     * 下单路径上的Lua脚本，预热时SCRIPT LOAD，之后的EVALSHA不会因为NOSCRIPT回退到EVAL
+     */
+    private static final String[] SECKILL_SCRIPTS = {
+            "seckill.lua", "seckill_take.lua", "seckill_admit.lua", "unpaid_claim.lua", "unpaid_cancel.lua",
+            "room_enqueue.lua", "room_take.lua", "room_status.lua", "room_close.lua"
+    };
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private VoucherStateTable voucherStateTable;
+
+    @Resource
+    private OrderStreamRegistry orderStreamRegistry;
+
+    /**
+     * 秒杀库存分片数，大于1时库存拆分到多个key，分散热点优惠券在Redis上的压力
+     */
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
+    @Value("${hmdp.seckill.consumer.partitions:4}")
+    private int orderPartitions;
+
+    @Value("${hmdp.seckill.campaign.prewarm-minutes:5}")
+    private long prewarmMinutes;
+
+    @Value("${hmdp.seckill.campaign.batch-size:1000}")
+    private int batchSize;
+
+    @Value("${hmdp.seckill.buyer-set:set}")
+    private String buyerSet;
+
+    @Value("${hmdp.seckill.buyer-set-retention-hours:24}")
+    private long retentionHours;
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.campaign.poll-interval-millis:10000}")
+    public void schedule() {
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_SECKILL_CAMPAIGN_KEY);
+        if(!lock.tryLock()) {
+            return;
+        }
+        try {
+            prewarmUpcoming();
+            teardownFinished();
+        } catch (Exception e) {
+            log.error("秒杀活动预热和清理异常", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 新建秒杀券时调用，即将开始的立即预热，其余的由定时任务在开始前预热
+     */
+    public void prewarmIfDue(SeckillVoucher voucher) {
+        if(voucher.getBeginTime().isBefore(LocalDateTime.now().plusMinutes(prewarmMinutes))) {
+            prewarm(voucher);
+            loadScripts();
+        }
+    }
+
+    /**
+     * 预热即将开始的秒杀券，检查进行中的秒杀券是否需要恢复
+     */
+    private void prewarmUpcoming() {
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> vouchers = seckillVoucherMapper.selectList(Wrappers.lambdaQuery(SeckillVoucher.class)
+                .lt(SeckillVoucher::getBeginTime, now.plusMinutes(prewarmMinutes))
+                .gt(SeckillVoucher::getEndTime, now));
+        boolean prewarmed = false;
+        for (SeckillVoucher voucher : vouchers) {
+            if(isWarm(voucher.getVoucherId())) {
+                stringRedisTemplate.opsForSet().add(RedisConstants.SECKILL_CAMPAIGNS_KEY, voucher.getVoucherId().toString());
+                continue;
+            }
+            try {
+                prewarm(voucher);
+                prewarmed = true;
+            } catch (Exception e) {
+                log.error("预热秒杀券{}失败", voucher.getVoucherId(), e);
+            }
+        }
+        if(prewarmed) {
+            loadScripts();
+        }
+    }
+
+    private boolean isWarm(Long voucherId) {
+        String slot = Boolean.TRUE.equals(stringRedisTemplate.hasKey(SeckillKeys.shardsKey(voucherId)))
+                ? SeckillKeys.slot(voucherId, 0) : SeckillKeys.slot(voucherId);
+        return Boolean.TRUE.equals(stringRedisTemplate.hasKey(SeckillKeys.stockKey(slot)));
+    }
+
+    private void prewarm(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        // 1.库存，恢复时沿用已有的分片数
+        String shardsValue = stringRedisTemplate.opsForValue().get(SeckillKeys.shardsKey(voucherId));
+        int shards = shardsValue != null ? Integer.parseInt(shardsValue) : Math.min(stockShards, voucher.getStock());
+        boolean created = saveStock(voucherId, voucher.getStock(), shards);
+        shards = Math.max(shards, 1);
+        // 2.已购用户，新建的秒杀券没有订单
+        if(created) {
+            restoreBuyers(voucher, shards);
+        }
+        // 3.订单流分区和消费者组，恢复时沿用已有的分区数
+        String partitionsValue = stringRedisTemplate.opsForValue().get(SeckillKeys.partitionsKey(voucherId));
+        int partitions = partitionsValue != null ? Integer.parseInt(partitionsValue) : Math.max(orderPartitions, 1);
+        stringRedisTemplate.opsForValue().setIfAbsent(SeckillKeys.partitionsKey(voucherId), String.valueOf(partitions));
+        orderStreamRegistry.register(voucherId, shards, partitions);
+        stringRedisTemplate.opsForSet().add(RedisConstants.SECKILL_CAMPAIGNS_KEY, voucherId.toString());
+        // 4.所有节点加载秒杀券状态（包括分片数）
+        voucherStateTable.refresh(voucherId);
+        log.info("预热秒杀券{}，库存{}，分片数{}，订单流分区数{}", voucherId, voucher.getStock(), shards, partitions);
+    }
+
+    /**
+     * 分片数为1或库存少于分片数时使用单个库存key；否则把库存平均拆分到各分片，余数分给前几个分片
+     * @return 是否创建了库存key
+     */
+    private boolean saveStock(Long voucherId, int stock, int shards) {
+        if(shards <= 1) {
+            return setIfAbsent(SeckillKeys.stockKey(SeckillKeys.slot(voucherId)), stock);
+        }
+        boolean created = false;
+        for (int i = 0; i < shards; i++) {
+            int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+            created |= setIfAbsent(SeckillKeys.stockKey(SeckillKeys.slot(voucherId, i)), shardStock);
+        }
+        stringRedisTemplate.opsForValue().setIfAbsent(SeckillKeys.shardsKey(voucherId), String.valueOf(shards));
+        return created;
+    }
+
+    private boolean setIfAbsent(String key, int value) {
+        return Boolean.TRUE.equals(stringRedisTemplate.opsForValue().setIfAbsent(key, String.valueOf(value)));
+    }
+
+    /**
+     * 按userId顺序分批读取未取消订单的用户，写入各自主分片的已购用户key
+     */
+    private void restoreBuyers(SeckillVoucher voucher, int shards) {
+        Long voucherId = voucher.getVoucherId();
+        boolean bitmap = BUYER_SET_BITMAP.equals(buyerSet);
+        long expireAt = voucher.getEndTime().plusHours(retentionHours).atZone(ZoneId.systemDefault()).toEpochSecond();
+        List<Long> userIds;
+        Long after = 0L;
+        long restored = 0;
+        do {
+            userIds = voucherOrderMapper.selectBuyers(voucherId, after, batchSize);
+            if(userIds.isEmpty()) {
+                break;
+            }
+            List<Long> batch = userIds;
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                Set<String> keys = new HashSet<>();
+                for (Long userId : batch) {
+                    String buyersKey = SeckillKeys.buyersKey(SeckillKeys.userSlot(voucherId, userId, shards), bitmap);
+                    if(bitmap) {
+                        connection.stringCommands().setBit(bytes(buyersKey), userId, true);
+                    } else {
+                        connection.setCommands().sAdd(bytes(buyersKey), bytes(userId.toString()));
+                    }
+                    keys.add(buyersKey);
+                }
+                for (String key : keys) {
+                    connection.keyCommands().expireAt(bytes(key), expireAt);
+                }
+                return null;
+            });
+            restored += userIds.size();
+            after = userIds.get(userIds.size() - 1);
+        } while(userIds.size() == batchSize);
+        if(restored > 0) {
+            log.warn("秒杀券{}的库存key不存在，已从数据库恢复{}个已购用户", voucherId, restored);
+        }
+    }
+
+    /**
+     * SCRIPT LOAD下单路径上的脚本，Redis Cluster中由连接发送到所有主节点
+     */
+    private void loadScripts() {
+        for (String script : SECKILL_SCRIPTS) {
+            try {
+                byte[] source = new ResourceScriptSource(new ClassPathResource(script)).getScriptAsString().getBytes(StandardCharsets.UTF_8);
+                stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.scriptingCommands().scriptLoad(source));
+            } catch (IOException e) {
+                log.error("读取脚本{}失败", script, e);
+            }
+        }
+    }
+
+    /**
+     * 清理已结束的秒杀活动，超时队列或订单流还没处理完的留到下次
+     */
+    private void teardownFinished() {
+        Set<String> campaigns = stringRedisTemplate.opsForSet().members(RedisConstants.SECKILL_CAMPAIGNS_KEY);
+        if(campaigns == null) {
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        for (String id : campaigns) {
+            Long voucherId = Long.valueOf(id);
+            SeckillVoucher voucher = seckillVoucherMapper.selectById(voucherId);
+            if(voucher != null && voucher.getEndTime().isAfter(now)) {
+                continue;
+            }
+            try {
+                teardown(voucherId);
+            } catch (Exception e) {
+                log.error("清理秒杀券{}失败", voucherId, e);
+            }
+        }
+    }
+
+    private void teardown(Long voucherId) {
+        String shardsValue = stringRedisTemplate.opsForValue().get(SeckillKeys.shardsKey(voucherId));
+        String partitionsValue = stringRedisTemplate.opsForValue().get(SeckillKeys.partitionsKey(voucherId));
+        List<String> slots = SeckillKeys.slots(voucherId, shardsValue == null ? 1 : Integer.parseInt(shardsValue));
+        int partitions = partitionsValue == null ? 1 : Integer.parseInt(partitionsValue);
+
+        boolean drained = true;
+        for (String slot : slots) {
+            // 1.库存和准入计数，之后取消的订单不再归还Redis库存
+            stringRedisTemplate.delete(SeckillKeys.stockKey(slot));
+            stringRedisTemplate.delete(SeckillKeys.admitKey(slot));
+            // 2.超时队列为空、订单流分区消费完后注销订单流
+            Long unpaid = stringRedisTemplate.opsForZSet().zCard(SeckillKeys.unpaidKey(slot));
+            if(unpaid != null && unpaid > 0) {
+                drained = false;
+                continue;
+            }
+            for (int p = 0; p < partitions; p++) {
+                String streamKey = SeckillKeys.ordersKey(slot, p, partitions);
+                if(!isConsumed(streamKey)) {
+                    drained = false;
+                    continue;
+                }
+                // 消费者在下次分配时释放已注销的订单流，订单流保留到已购用户key过期，便于排查
+                stringRedisTemplate.opsForSet().remove(RedisConstants.SECKILL_STREAMS_KEY, streamKey);
+                stringRedisTemplate.expire(streamKey, retentionHours, TimeUnit.HOURS);
+            }
+        }
+        if(!drained) {
+            return;
+        }
+        // 3.分片数和分区数最后删除，超时取消还需要用分片数找到用户的主分片
+        stringRedisTemplate.delete(SeckillKeys.shardsKey(voucherId));
+        stringRedisTemplate.delete(SeckillKeys.partitionsKey(voucherId));
+        stringRedisTemplate.opsForSet().remove(RedisConstants.SECKILL_CAMPAIGNS_KEY, voucherId.toString());
+        log.info("秒杀券{}已结束，清理完成", voucherId);
+    }
+
+    /**
+     * 订单流中的消息都已投递给消费者组并ACK
+     */
+    private boolean isConsumed(String streamKey) {
+        if(!Boolean.TRUE.equals(stringRedisTemplate.hasKey(streamKey))) {
+            return true;
+        }
+        List<MapRecord<String, Object, Object>> last = stringRedisTemplate.opsForStream().reverseRange(streamKey,
+                Range.unbounded(), RedisZSetCommands.Limit.limit().count(1));
+        if(last == null || last.isEmpty()) {
+            return true;
+        }
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(streamKey);
+        for (int i = 0; i < groups.size(); i++) {
+            StreamInfo.XInfoGroup group = groups.get(i);
+            if(RedisConstants.SECKILL_ORDER_GROUP.equals(group.groupName())) {
+                return group.pendingCount() == 0 && last.get(0).getId().getValue().equals(group.lastDeliveredId());
+            }
+        }
+        return false;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
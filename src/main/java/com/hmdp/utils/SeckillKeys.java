@@ -0,0 +1,137 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 秒杀相关的Redis key。
+ * 同一个秒杀券的库存、已购用户、订单流、超时队列、准入计数和排队key都带相同的hash tag，
+ * 例如 seckill:{v123}:stock、seckill:{v123}:buyers、seckill:{v123}:orders:p0，
+ * 在Redis Cluster中落在同一个slot，下单脚本声明的所有KEYS都在同一个slot；不同秒杀券分散到不同节点。
+ * 分片模式下每个分片使用自己的hash tag {v123:s2}，热点秒杀券的各分片也分散到不同节点
+ */
+public class SeckillKeys {
+
+    /**
+     * 未分片秒杀券的key前缀 seckill:{v123}:
+     */
+    public static String slot(Long voucherId) {
+        return RedisConstants.SECKILL_KEY_PREFIX + "{v" + voucherId + "}:";
+    }
+
+    /**
+     * 库存分片的key前缀 seckill:{v123:s2}:
+     */
+    public static String slot(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_KEY_PREFIX + "{v" + voucherId + ":s" + shard + "}:";
+    }
+
+    /**
+     * 秒杀券的所有key前缀，未分片时只有一个
+     */
+    public static List<String> slots(Long voucherId, int shards) {
+        if(shards <= 1) {
+            return Collections.singletonList(slot(voucherId));
+        }
+        List<String> slots = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            slots.add(slot(voucherId, i));
+        }
+        return slots;
+    }
+
+    /**
+     * 用户下单时使用的key前缀：未分片时为秒杀券的前缀，分片时为用户主分片的前缀
+     */
+    public static String userSlot(Long voucherId, Long userId, int shards) {
+        return shards > 1 ? slot(voucherId, homeShard(userId, shards)) : slot(voucherId);
+    }
+
+    /**
+     * 从同一slot的key（如订单流）取出key前缀
+     */
+    public static String slotOf(String key) {
+        return key.substring(0, key.indexOf('}') + 2);
+    }
+
+    public static String stockKey(String slot) {
+        return slot + "stock";
+    }
+
+    /**
+     * 已购用户，set模式为userId字符串的SET，bitmap模式为以userId为偏移量的位图，两种模式使用不同的key
+     */
+    public static String buyersKey(String slot, boolean bitmap) {
+        return slot + (bitmap ? "buyer-bits" : "buyers");
+    }
+
+    /**
+     * 订单流，每个秒杀券（分片）分成partitions个分区 seckill:{v123}:orders:p3，分区数为1时为 seckill:{v123}:orders。
+     * 各分区与库存在同一个slot，由消费者从注册表 seckill:streams 中发现，每个分区可以由不同的消费者并行处理
+     */
+    public static String ordersKey(String slot, int partition, int partitions) {
+        return partitions > 1 ? slot + "orders:p" + partition : slot + "orders";
+    }
+
+    /**
+     * 用户的订单写入的分区，同一用户的订单总在同一个分区中，保持顺序
+     */
+    public static String userOrdersKey(String slot, Long userId, int partitions) {
+        return ordersKey(slot, partition(userId, partitions), partitions);
+    }
+
+    /**
+     * 未支付订单的超时队列
+     */
+    public static String unpaidKey(String slot) {
+        return slot + "unpaid";
+    }
+
+    /**
+     * 已扣减Redis库存、还没有落库的订单id：下单脚本加入，订单落库后由消费者移除，取消时由取消脚本移除
+     */
+    public static String inFlightKey(String slot) {
+        return slot + "inflight";
+    }
+
+    public static String admitKey(String slot) {
+        return slot + "admit";
+    }
+
+    /**
+     * 排队模式的key
+     */
+    public static String roomKey(Long voucherId, String name) {
+        return slot(voucherId) + "room:" + name;
+    }
+
+    /**
+     * 优惠券的库存分片数，不存在表示未分片
+     */
+    public static String shardsKey(Long voucherId) {
+        return RedisConstants.SECKILL_SHARDS_KEY + voucherId;
+    }
+
+    /**
+     * 优惠券每个slot的订单流分区数，预热时确定，不存在表示不分区
+     */
+    public static String partitionsKey(Long voucherId) {
+        return RedisConstants.SECKILL_PARTITIONS_KEY + voucherId;
+    }
+
+    /**
+     * 用户的主分片：一人一单只在主分片的已购集合中判断
+     */
+    public static int homeShard(Long userId, int shards) {
+        return Math.floorMod(userId.hashCode(), shards);
+    }
+
+    /**
+     * 用户的订单流分区。与homeShard使用不同的散列（取乘以黄金分割常数后的高32位），
+     * 分片模式下同一分片中的用户userId同余，也能均匀分到各分区
+     */
+    public static int partition(Long userId, int partitions) {
+        return Math.floorMod((int) ((userId * 0x9E3779B97F4A7C15L) >>> 32), partitions);
+    }
+}
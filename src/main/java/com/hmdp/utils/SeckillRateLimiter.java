@@ -0,0 +1,139 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀请求的分层限流，在生成订单id和执行下单脚本之前拒绝多余的请求：
+ * 1. 本节点每个秒杀券一个令牌桶，吸收瞬时突发，被拒绝的请求不访问Redis；
+ * 2. Redis中每个秒杀券（分片模式下每个分片）一个准入计数，每秒放行的请求数不超过剩余库存的倍数，
+ *    库存只剩10个时全集群每秒最多放行30个请求去抢，其余请求直接失败。
+ * 不存在、未开始、已结束和本地已售罄的秒杀券不限流，由下单逻辑直接返回对应的提示
+ */
+@Component
+public class SeckillRateLimiter {
+
+    private static final long ADMIT_WINDOW_MILLIS = 1000;
+
+    private static final long EVICT_INTERVAL_MILLIS = 60000;
+
+    private static final DefaultRedisScript<Long> ADMIT_SCRIPT;
+    static {
+        ADMIT_SCRIPT = new DefaultRedisScript<>();
+        ADMIT_SCRIPT.setLocation(new ClassPathResource("seckill_admit.lua"));
+        ADMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private VoucherStateTable voucherStateTable;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.seckill.limit.local-permits-per-second:2000}")
+    private double localPermitsPerSecond;
+
+    @Value("${hmdp.seckill.limit.local-burst:2000}")
+    private double localBurst;
+
+    @Value("${hmdp.seckill.limit.admission-multiplier:3}")
+    private double admissionMultiplier;
+
+    private final Map<Long, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    private Counter localRejects;
+
+    private Counter admissionRejects;
+
+    @PostConstruct
+    private void init() {
+        localRejects = Counter.builder("seckill.rate.limited").tag("layer", "local").register(meterRegistry);
+        admissionRejects = Counter.builder("seckill.rate.limited").tag("layer", "redis").register(meterRegistry);
+    }
+
+    /**
+     * 删除已结束秒杀券的令牌桶
+     */
+    @Scheduled(fixedDelay = EVICT_INTERVAL_MILLIS)
+    public void evictBuckets() {
+        LocalDateTime now = LocalDateTime.now();
+        buckets.keySet().removeIf(voucherId -> voucherStateTable.get(voucherId).ended(now));
+    }
+
+    /**
+     * 判断是否放行一次抢购请求，false表示应当返回429
+     */
+    public boolean tryAcquire(Long voucherId, Long userId) {
+        VoucherStateTable.VoucherState state = voucherStateTable.get(voucherId);
+        LocalDateTime now = LocalDateTime.now();
+        if(!state.exists() || state.getBeginTime().isAfter(now) || state.getEndTime().isBefore(now)
+                || voucherStateTable.isSoldOut(state)) {
+            return true;
+        }
+
+        if(localPermitsPerSecond > 0
+                && !buckets.computeIfAbsent(voucherId, id -> new TokenBucket(localPermitsPerSecond, localBurst)).tryAcquire()) {
+            localRejects.increment();
+            return false;
+        }
+
+        if(admissionMultiplier > 0 && !admit(voucherId, userId, state.getStockShards())) {
+            admissionRejects.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean admit(Long voucherId, Long userId, int shards) {
+        // 分片模式下只看用户主分片的库存，各分片的准入计数分散在不同的slot上
+        String slot = SeckillKeys.userSlot(voucherId, userId, shards);
+        Long r = stringRedisTemplate.execute(ADMIT_SCRIPT, Arrays.asList(SeckillKeys.stockKey(slot), SeckillKeys.admitKey(slot)),
+                String.valueOf(admissionMultiplier), String.valueOf(ADMIT_WINDOW_MILLIS));
+        return r == null || r == 1;
+    }
+
+    /**
+     * 令牌桶：按固定速率补充令牌，最多积累capacity个，每个请求消耗一个
+     */
+    static class TokenBucket {
+        private final double permitsPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(double permitsPerSecond, double capacity) {
+            this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = Math.max(capacity, 1);
+            this.tokens = this.capacity;
+            this.lastRefill = System.nanoTime();
+        }
+
+        synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * permitsPerNano);
+            lastRefill = now;
+            if(tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+}
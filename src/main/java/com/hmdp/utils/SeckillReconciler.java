@@ -0,0 +1,521 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Redis与数据库的对账。订单消息丢失、Redis主从切换丢失写入等情况下，Redis中的库存和已购用户会与数据库不一致：
+ * 库存偏少会少卖，库存偏多会超卖，缺少已购用户会让同一用户重复抢购。
+ * <p>
+ * 秒杀进行中也可以对账：下单脚本同时扣库存、写入已购用户和未落库订单集合 seckill:{v123}:inflight，
+ * 消费者在订单落库后、取消脚本在取消时从集合中移除，集合中只有处理中的订单（在途订单），大小取决于消费积压而不是库存。
+ * 在一个只读事务中先读数据库的库存和已购用户数，再在Lua中同时读取Redis的库存、已购用户数和在途订单，
+ * 然后在同一个事务快照中按主键确认在途订单是否已落库（消费者移除失败时集合中会残留已落库的订单，顺便清理），
+ * 两边是同一时刻的值，应有
+ * <pre>
+ * Redis各分片库存之和 + 在途订单数 = tb_seckill_voucher.stock
+ * Redis已购用户数               = tb_voucher_order中未取消订单的用户数 + 在途订单数
+ * </pre>
+ * 在途订单超过上限（消费积压严重）时跳过该秒杀券，等积压消化后再对账。
+ * 每次只按voucher_id游标对账一批未过期的秒杀券，数据库只按唯一索引 uk_voucher_buyer 和主键查询单个秒杀券的订单，不扫描全表；
+ * 数量一致时不比对明细。同一差异连续两次对账都出现才修正，排除取消、支付过程中的短暂不一致。
+ * 库存按差异量增减，不覆盖期间正常下单的扣减；移除多余的已购用户时跳过超时队列中有订单的用户。集群中只有持有对账锁的节点执行
+ */
+@Slf4j
+@Component
+public class SeckillReconciler {
+
+    private static final String BUYER_SET_BITMAP = "bitmap";
+
+    /**
+     * 位图每次GETRANGE读取的字节数
+     */
+    private static final int BITMAP_CHUNK_BYTES = 4096;
+
+    private static final DefaultRedisScript<List> READ_SCRIPT;
+    private static final DefaultRedisScript<Long> STOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> BUYERS_SCRIPT;
+    static {
+        READ_SCRIPT = new DefaultRedisScript<>();
+        READ_SCRIPT.setLocation(new ClassPathResource("reconcile_read.lua"));
+        READ_SCRIPT.setResultType(List.class);
+        STOCK_SCRIPT = new DefaultRedisScript<>();
+        STOCK_SCRIPT.setLocation(new ClassPathResource("reconcile_stock.lua"));
+        STOCK_SCRIPT.setResultType(Long.class);
+        BUYERS_SCRIPT = new DefaultRedisScript<>();
+        BUYERS_SCRIPT.setLocation(new ClassPathResource("reconcile_buyers.lua"));
+        BUYERS_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private VoucherStateTable voucherStateTable;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private PlatformTransactionManager transactionManager;
+
+    @Value("${hmdp.seckill.reconcile.vouchers-per-pass:20}")
+    private int vouchersPerPass;
+
+    @Value("${hmdp.seckill.reconcile.batch-size:500}")
+    private int batchSize;
+
+    @Value("${hmdp.seckill.reconcile.max-in-flight:10000}")
+    private int maxInFlight;
+
+    @Value("${hmdp.seckill.buyer-set:set}")
+    private String buyerSet;
+
+    @Value("${hmdp.seckill.buyer-set-retention-hours:24}")
+    private long retentionHours;
+
+    /**
+     * 上一次对账发现差异、等待确认的秒杀券
+     */
+    private final Map<Long, Snapshot> suspects = new ConcurrentHashMap<>();
+
+    /**
+     * 读取快照的只读事务，可重复读保证整个快照看到的是同一时刻的数据库
+     */
+    private TransactionTemplate snapshotTransaction;
+
+    private Counter stockDriftCounter;
+
+    private Counter missingBuyerCounter;
+
+    private Counter phantomBuyerCounter;
+
+    /**
+     * 一个秒杀券某次对账时读到的数量
+     */
+    @Data
+    private static class Snapshot {
+        private final List<String> slots;
+        private final long redisStock;
+        private final long dbStock;
+        private final long redisBuyers;
+        private final long dbBuyers;
+        /**
+         * 超时队列中还没有落库的订单数
+         */
+        private final long inFlight;
+
+        /**
+         * Redis库存需要的修正量，正数表示偏少
+         */
+        long stockDrift() {
+            return dbStock - inFlight - redisStock;
+        }
+
+        /**
+         * Redis已购用户数的差异，正数表示缺少
+         */
+        long buyerDrift() {
+            return dbBuyers + inFlight - redisBuyers;
+        }
+
+        boolean consistent() {
+            return stockDrift() == 0 && buyerDrift() == 0;
+        }
+
+        /**
+         * 对账期间一直有新订单，两次快照的数量不同，只比较差异
+         */
+        boolean sameDrift(Snapshot other) {
+            return other != null && stockDrift() == other.stockDrift() && buyerDrift() == other.buyerDrift();
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        snapshotTransaction = new TransactionTemplate(transactionManager);
+        snapshotTransaction.setReadOnly(true);
+        snapshotTransaction.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+        stockDriftCounter = Counter.builder("seckill.reconcile.drift").tag("type", "stock").register(meterRegistry);
+        missingBuyerCounter = Counter.builder("seckill.reconcile.drift").tag("type", "buyer.missing").register(meterRegistry);
+        phantomBuyerCounter = Counter.builder("seckill.reconcile.drift").tag("type", "buyer.phantom").register(meterRegistry);
+        Gauge.builder("seckill.reconcile.drifting", suspects, Map::size).register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval-millis:10000}")
+    public void reconcile() {
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_SECKILL_RECONCILE_KEY);
+        if(!lock.tryLock()) {
+            return;
+        }
+        try {
+            reconcileNextVouchers();
+        } catch (Exception e) {
+            log.error("秒杀对账异常", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 从游标开始对账一批秒杀券，游标保存在Redis中，对账锁换到其他节点后接着对账
+     */
+    private void reconcileNextVouchers() {
+        String cursor = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_RECONCILE_CURSOR_KEY);
+        // 已购用户key在秒杀结束后还保留一段时间，这段时间内也需要对账
+        List<SeckillVoucher> vouchers = seckillVoucherMapper.selectList(Wrappers.lambdaQuery(SeckillVoucher.class)
+                .gt(SeckillVoucher::getVoucherId, cursor == null ? 0L : Long.parseLong(cursor))
+                .gt(SeckillVoucher::getEndTime, LocalDateTime.now().minusHours(retentionHours))
+                .orderByAsc(SeckillVoucher::getVoucherId)
+                .last("limit " + vouchersPerPass));
+        for (SeckillVoucher voucher : vouchers) {
+            try {
+                reconcile(voucher);
+            } catch (Exception e) {
+                log.error("秒杀券{}对账异常", voucher.getVoucherId(), e);
+            }
+        }
+        // 不足一批说明已经到末尾，下次从头开始
+        String next = vouchers.size() < vouchersPerPass ? "0" : vouchers.get(vouchers.size() - 1).getVoucherId().toString();
+        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_RECONCILE_CURSOR_KEY, next);
+    }
+
+    private void reconcile(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        Snapshot snapshot = snapshot(voucher);
+        if(snapshot == null || snapshot.consistent()) {
+            suspects.remove(voucherId);
+            return;
+        }
+        // 连续两次对账看到相同的差异才修正
+        if(!snapshot.sameDrift(suspects.put(voucherId, snapshot))) {
+            log.warn("秒杀券{}与数据库不一致，等待下次对账确认：{}", voucherId, snapshot);
+            return;
+        }
+        suspects.remove(voucherId);
+        log.warn("秒杀券{}与数据库不一致，开始修正：{}", voucherId, snapshot);
+        if(snapshot.buyerDrift() != 0) {
+            repairBuyers(voucher, snapshot);
+        }
+        if(snapshot.stockDrift() != 0) {
+            repairStock(voucherId, snapshot);
+        }
+    }
+
+    /**
+     * 读取秒杀券在Redis和数据库中的库存、已购用户数和在途订单数
+     * @return 库存未预热或已清理时返回null
+     */
+    private Snapshot snapshot(SeckillVoucher voucher) {
+        return snapshotTransaction.execute(status -> {
+            Long voucherId = voucher.getVoucherId();
+            // 先读数据库，事务快照在第一次读取时建立，之后Redis中新增的订单在快照中都还没有落库
+            SeckillVoucher current = seckillVoucherMapper.selectById(voucherId);
+            if(current == null) {
+                return null;
+            }
+            long dbBuyers = voucherOrderMapper.countBuyers(voucherId);
+
+            List<String> slots = SeckillKeys.slots(voucherId, voucherStateTable.get(voucherId).getStockShards());
+            long redisStock = 0, redisBuyers = 0, inFlight = 0;
+            Map<String, List<Long>> orderIds = new HashMap<>();
+            for (String slot : slots) {
+                List<String> values = readSlot(slot);
+                if(values == null || values.isEmpty()) {
+                    return null;
+                }
+                if(Long.parseLong(values.get(2)) > maxInFlight) {
+                    log.info("秒杀券{}的在途订单超过{}个，跳过本次对账", voucherId, maxInFlight);
+                    return null;
+                }
+                redisStock += Long.parseLong(values.get(0));
+                redisBuyers += Long.parseLong(values.get(1));
+                List<Long> ids = values.subList(3, values.size()).stream().map(Long::valueOf).collect(Collectors.toList());
+                orderIds.put(slot, ids);
+                inFlight += ids.size();
+            }
+
+            // 快照中已落库的订单不是在途订单，是消费者移除失败残留的
+            for (Map.Entry<String, List<Long>> entry : orderIds.entrySet()) {
+                List<Long> ids = entry.getValue();
+                for (int i = 0; i < ids.size(); i += batchSize) {
+                    List<Long> persisted = voucherOrderMapper.selectExistingIds(ids.subList(i, Math.min(i + batchSize, ids.size())));
+                    inFlight -= persisted.size();
+                    removeInFlight(entry.getKey(), persisted);
+                }
+            }
+            return new Snapshot(slots, redisStock, current.getStock(), redisBuyers, dbBuyers, inFlight);
+        });
+    }
+
+    private void removeInFlight(String slot, List<Long> orderIds) {
+        if(orderIds.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.opsForSet().remove(SeckillKeys.inFlightKey(slot), orderIds.stream().map(String::valueOf).toArray());
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> readSlot(String slot) {
+        boolean bitmap = BUYER_SET_BITMAP.equals(buyerSet);
+        return stringRedisTemplate.execute(READ_SCRIPT,
+                Arrays.asList(SeckillKeys.stockKey(slot), SeckillKeys.buyersKey(slot, bitmap), SeckillKeys.inFlightKey(slot)),
+                buyerSet, String.valueOf(maxInFlight));
+    }
+
+    /**
+     * 库存以数据库为准：偏少时补到第一个分片，偏多时依次从有库存的分片扣减
+     */
+    private void repairStock(Long voucherId, Snapshot snapshot) {
+        List<String> slots = snapshot.getSlots();
+        long delta = snapshot.stockDrift();
+        long repaired = 0;
+        if(delta > 0) {
+            repaired = adjustStock(slots.get(0), delta);
+        } else {
+            for (int i = 0; i < slots.size() && repaired < -delta; i++) {
+                repaired -= adjustStock(slots.get(i), delta + repaired);
+            }
+        }
+        stockDriftCounter.increment(Math.abs(repaired));
+        if(delta > 0 && repaired > 0) {
+            voucherStateTable.markRestocked(voucherId);
+        }
+        log.warn("秒杀券{}的Redis库存修正了{}，差异为{}", voucherId, delta > 0 ? repaired : -repaired, delta);
+    }
+
+    /**
+     * @return 实际的修正量
+     */
+    private long adjustStock(String slot, long delta) {
+        Long result = stringRedisTemplate.execute(STOCK_SCRIPT,
+                Collections.singletonList(SeckillKeys.stockKey(slot)), String.valueOf(delta));
+        return result == null ? 0 : result;
+    }
+
+    /**
+     * 已购用户以数据库中的未取消订单为准：
+     * 1. 按userId顺序分批读取数据库中的用户，补上Redis中缺少的；
+     * 2. 分批遍历Redis中的用户，找出数据库中没有未取消订单的，再读取超时队列，
+     *    跳过有在途订单的用户后移除。超时队列在找出之后读取，期间落库或新下单的用户都在队列中
+     */
+    private void repairBuyers(SeckillVoucher voucher, Snapshot snapshot) {
+        Long voucherId = voucher.getVoucherId();
+        boolean bitmap = BUYER_SET_BITMAP.equals(buyerSet);
+        int shards = snapshot.getSlots().size();
+        long expireAt = voucher.getEndTime().plusHours(retentionHours).atZone(ZoneId.systemDefault()).toEpochSecond();
+
+        List<Long> userIds;
+        Long after = 0L;
+        do {
+            userIds = voucherOrderMapper.selectBuyers(voucherId, after, batchSize);
+            if(userIds.isEmpty()) {
+                break;
+            }
+            addMissingBuyers(voucherId, userIds, shards, bitmap, expireAt);
+            after = userIds.get(userIds.size() - 1);
+        } while(userIds.size() == batchSize);
+
+        Map<String, Set<Long>> phantoms = new HashMap<>();
+        for (String slot : snapshot.getSlots()) {
+            String buyersKey = SeckillKeys.buyersKey(slot, bitmap);
+            Set<Long> found = bitmap ? findPhantomsInBitmap(voucherId, buyersKey) : findPhantomsInSet(voucherId, buyersKey);
+            if(!found.isEmpty()) {
+                phantoms.put(buyersKey, found);
+            }
+        }
+        if(phantoms.isEmpty()) {
+            return;
+        }
+        Set<Long> inFlight = unpaidBuyers(snapshot.getSlots());
+        phantoms.forEach((buyersKey, found) -> {
+            found.removeAll(inFlight);
+            removePhantoms(voucherId, buyersKey, found);
+        });
+    }
+
+    /**
+     * 超时队列中有订单的用户，成员格式为 orderId:voucherId:userId
+     */
+    private Set<Long> unpaidBuyers(List<String> slots) {
+        Set<Long> userIds = new HashSet<>();
+        for (String slot : slots) {
+            try (Cursor<ZSetOperations.TypedTuple<String>> cursor = stringRedisTemplate.opsForZSet()
+                    .scan(SeckillKeys.unpaidKey(slot), ScanOptions.scanOptions().count(batchSize).build())) {
+                while(cursor.hasNext()) {
+                    String member = cursor.next().getValue();
+                    userIds.add(Long.valueOf(member.substring(member.lastIndexOf(':') + 1)));
+                }
+            }
+        }
+        return userIds;
+    }
+
+    private void addMissingBuyers(Long voucherId, List<Long> userIds, int shards, boolean bitmap, long expireAt) {
+        List<Object> members = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long userId : userIds) {
+                byte[] key = bytes(SeckillKeys.buyersKey(SeckillKeys.userSlot(voucherId, userId, shards), bitmap));
+                if(bitmap) {
+                    connection.stringCommands().getBit(key, userId);
+                } else {
+                    connection.setCommands().sIsMember(key, bytes(userId.toString()));
+                }
+            }
+            return null;
+        });
+        List<Long> missing = new ArrayList<>();
+        for (int i = 0; i < userIds.size(); i++) {
+            if(!Boolean.TRUE.equals(members.get(i))) {
+                missing.add(userIds.get(i));
+            }
+        }
+        if(missing.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            Set<String> keys = new HashSet<>();
+            for (Long userId : missing) {
+                String buyersKey = SeckillKeys.buyersKey(SeckillKeys.userSlot(voucherId, userId, shards), bitmap);
+                if(bitmap) {
+                    connection.stringCommands().setBit(bytes(buyersKey), userId, true);
+                } else {
+                    connection.setCommands().sAdd(bytes(buyersKey), bytes(userId.toString()));
+                }
+                keys.add(buyersKey);
+            }
+            for (String key : keys) {
+                connection.keyCommands().expireAt(bytes(key), expireAt);
+            }
+            return null;
+        });
+        missingBuyerCounter.increment(missing.size());
+        log.warn("秒杀券{}补上了{}个Redis中缺少的已购用户", voucherId, missing.size());
+    }
+
+    private Set<Long> findPhantomsInSet(Long voucherId, String buyersKey) {
+        Set<Long> phantoms = new HashSet<>();
+        List<Long> batch = new ArrayList<>(batchSize);
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(buyersKey, ScanOptions.scanOptions().count(batchSize).build())) {
+            while(cursor.hasNext()) {
+                batch.add(Long.valueOf(cursor.next()));
+                if(batch.size() == batchSize) {
+                    findPhantoms(voucherId, batch, phantoms);
+                    batch.clear();
+                }
+            }
+        }
+        findPhantoms(voucherId, batch, phantoms);
+        return phantoms;
+    }
+
+    /**
+     * 分块读取位图，位图的第0位是每个字节的最高位
+     */
+    private Set<Long> findPhantomsInBitmap(Long voucherId, String buyersKey) {
+        byte[] key = bytes(buyersKey);
+        Long length = stringRedisTemplate.execute((RedisCallback<Long>) connection -> connection.stringCommands().strLen(key));
+        Set<Long> phantoms = new HashSet<>();
+        List<Long> batch = new ArrayList<>(batchSize);
+        for (long start = 0; length != null && start < length; start += BITMAP_CHUNK_BYTES) {
+            long from = start;
+            byte[] chunk = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                    connection.stringCommands().getRange(key, from, from + BITMAP_CHUNK_BYTES - 1));
+            if(chunk == null) {
+                break;
+            }
+            for (int i = 0; i < chunk.length; i++) {
+                for (int bit = 0; bit < 8; bit++) {
+                    if((chunk[i] & (0x80 >>> bit)) == 0) {
+                        continue;
+                    }
+                    batch.add((start + i) * 8 + bit);
+                    if(batch.size() == batchSize) {
+                        findPhantoms(voucherId, batch, phantoms);
+                        batch.clear();
+                    }
+                }
+            }
+        }
+        findPhantoms(voucherId, batch, phantoms);
+        return phantoms;
+    }
+
+    /**
+     * 把一批Redis用户中数据库里没有未取消订单的加入phantoms
+     */
+    private void findPhantoms(Long voucherId, List<Long> userIds, Set<Long> phantoms) {
+        if(userIds.isEmpty()) {
+            return;
+        }
+        Set<Long> missing = new HashSet<>(userIds);
+        voucherOrderMapper.selectBuyersIn(voucherId, userIds).forEach(missing::remove);
+        phantoms.addAll(missing);
+    }
+
+    private void removePhantoms(Long voucherId, String buyersKey, Set<Long> userIds) {
+        List<Long> all = new ArrayList<>(userIds);
+        long removed = 0;
+        for (int i = 0; i < all.size(); i += batchSize) {
+            List<String> args = new ArrayList<>(batchSize + 1);
+            args.add(buyerSet);
+            all.subList(i, Math.min(i + batchSize, all.size())).forEach(userId -> args.add(userId.toString()));
+            Long n = stringRedisTemplate.execute(BUYERS_SCRIPT, Collections.singletonList(buyersKey), args.toArray());
+            removed += n == null ? 0 : n;
+        }
+        if(removed > 0) {
+            phantomBuyerCounter.increment(removed);
+            log.warn("秒杀券{}移除了{}个数据库中没有订单的已购用户", voucherId, removed);
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,79 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * 进程内的请求合并：同一个key同一时刻只有一个线程（leader）真正执行加载，
+ * 其余并发请求等待leader的结果，不再各自去抢分布式锁
+ */
+public class SingleFlight {
+
+    private final ConcurrentMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    public <R> R execute(String key, Supplier<R> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if(existing != null) {
+            // 已有leader在加载，等待其结果
+            try {
+                return (R) existing.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if(cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if(cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw e;
+            }
+        }
+
+        // 当前线程是leader
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (Throwable e) {
+            // 包括Error，否则等待中的请求永远不会返回
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * 异步版本：同一个key只调用一次loader，其余请求直接拿到同一个future，不阻塞任何线程
+     */
+    @SuppressWarnings("unchecked")
+    public <R> CompletableFuture<R> executeAsync(String key, Supplier<CompletableFuture<R>> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if(existing != null) {
+            return (CompletableFuture<R>) existing;
+        }
+
+        CompletableFuture<R> loaded;
+        try {
+            loaded = loader.get();
+        } catch (RuntimeException e) {
+            loaded = new CompletableFuture<>();
+            loaded.completeExceptionally(e);
+        }
+        loaded.whenComplete((r, e) -> {
+            inFlight.remove(key, future);
+            if(e != null) {
+                future.completeExceptionally(e);
+            } else {
+                future.complete(r);
+            }
+        });
+        return (CompletableFuture<R>) future;
+    }
+}
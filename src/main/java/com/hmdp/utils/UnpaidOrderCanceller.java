@@ -0,0 +1,165 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.OrderStatus;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 超时未支付订单的取消。
+ * 下单脚本把 orderId:voucherId:userId 以取消时间为分数写入扣减库存的slot中的超时队列 seckill:{v123}:unpaid，
+ * 这里定时遍历注册表中每个订单流对应的超时队列，用ZRANGEBYSCORE按分数取出已到期的一批（O(log N + M)，不扫描未到期的成员），
+ * 取出的同时把分数推迟为租约结束时间，避免多个节点重复处理。每个订单：
+ * 1. 在数据库中把未支付的订单改为已取消并归还库存（已支付的订单不变）；
+ * 2. 订单处于已取消状态时，执行unpaid_cancel.lua移除队列成员并归还同一slot中的Redis库存，
+ *    以ZREM的结果为准，重复执行不会重复归还；一人一单名额与库存在同一个slot时在脚本中一起移除，
+ *    分片模式下名额在用户主分片、与扣减库存的分片不同时，脚本执行后再单独移除；然后广播补货；
+ * 3. 订单已支付时只移除队列成员。
+ * 任一步失败都不移除队列成员，租约到期后重新处理
+ */
+@Slf4j
+@Component
+public class UnpaidOrderCanceller {
+
+    private static final String BUYER_SET_BITMAP = "bitmap";
+
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("unpaid_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    private static final DefaultRedisScript<Long> CANCEL_SCRIPT;
+    static {
+        CANCEL_SCRIPT = new DefaultRedisScript<>();
+        CANCEL_SCRIPT.setLocation(new ClassPathResource("unpaid_cancel.lua"));
+        CANCEL_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private VoucherStateTable voucherStateTable;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private OrderStreamRegistry orderStreamRegistry;
+
+    @Resource
+    private OrderStatusNotifier orderStatusNotifier;
+
+    @Value("${hmdp.seckill.unpaid.batch-size:200}")
+    private int batchSize;
+
+    @Value("${hmdp.seckill.unpaid.lease-millis:30000}")
+    private long leaseMillis;
+
+    @Value("${hmdp.seckill.buyer-set:set}")
+    private String buyerSet;
+
+    private Counter cancelledCounter;
+
+    @PostConstruct
+    private void init() {
+        cancelledCounter = Counter.builder("seckill.order.cancelled").register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.unpaid.poll-interval-millis:1000}")
+    public void cancelExpiredOrders() {
+        // 同一个slot的多个订单流分区共用一个超时队列
+        Set<String> slots = new LinkedHashSet<>();
+        orderStreamRegistry.streams().forEach(streamKey -> slots.add(SeckillKeys.slotOf(streamKey)));
+        for (String slot : slots) {
+            try {
+                cancelExpiredOrders(slot);
+            } catch (Exception e) {
+                log.error("处理超时队列{}异常", SeckillKeys.unpaidKey(slot), e);
+            }
+        }
+    }
+
+    private void cancelExpiredOrders(String slot) {
+        List<String> members;
+        do {
+            members = claim(slot);
+            for (String member : members) {
+                try {
+                    cancel(slot, member);
+                } catch (Exception e) {
+                    log.error("取消超时订单{}失败，租约到期后重试", member, e);
+                }
+            }
+        } while(members.size() == batchSize);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> claim(String slot) {
+        long now = System.currentTimeMillis();
+        List<String> members = stringRedisTemplate.execute(CLAIM_SCRIPT,
+                Collections.singletonList(SeckillKeys.unpaidKey(slot)),
+                String.valueOf(now), String.valueOf(batchSize), String.valueOf(now + leaseMillis));
+        return members == null ? Collections.emptyList() : members;
+    }
+
+    private void cancel(String slot, String member) {
+        String[] parts = member.split(":");
+        Long orderId = Long.valueOf(parts[0]), voucherId = Long.valueOf(parts[1]), userId = Long.valueOf(parts[2]);
+
+        if(!voucherOrderService.cancelUnpaidOrder(orderId, voucherId, userId)) {
+            // 已支付
+            stringRedisTemplate.opsForZSet().remove(SeckillKeys.unpaidKey(slot), member);
+            return;
+        }
+
+        // 名额在用户主分片的slot中，未分片或主分片就是扣减库存的分片时交给脚本原子地移除
+        boolean bitmap = BUYER_SET_BITMAP.equals(buyerSet);
+        int shards = voucherStateTable.get(voucherId).getStockShards();
+        String buyersKey = SeckillKeys.buyersKey(SeckillKeys.userSlot(voucherId, userId, shards), bitmap);
+        boolean sameSlot = SeckillKeys.slotOf(buyersKey).equals(slot);
+        List<String> keys = new ArrayList<>(Arrays.asList(
+                SeckillKeys.unpaidKey(slot), SeckillKeys.stockKey(slot), SeckillKeys.inFlightKey(slot)));
+        if(sameSlot) {
+            keys.add(buyersKey);
+        }
+
+        Long restored = stringRedisTemplate.execute(CANCEL_SCRIPT, keys, member, buyerSet);
+        if(restored != null && restored == 1) {
+            if(!sameSlot) {
+                if(bitmap) {
+                    stringRedisTemplate.opsForValue().setBit(buyersKey, userId, false);
+                } else {
+                    stringRedisTemplate.opsForSet().remove(buyersKey, userId.toString());
+                }
+            }
+            cancelledCounter.increment();
+            voucherStateTable.markRestocked(voucherId);
+            orderStatusNotifier.publish(Collections.singletonList(
+                    new VoucherOrder().setId(orderId).setVoucherId(voucherId).setUserId(userId)), OrderStatus.CANCELLED);
+            log.info("订单{}超时未支付，已取消", orderId);
+        }
+    }
+}
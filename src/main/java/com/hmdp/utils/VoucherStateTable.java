@@ -0,0 +1,263 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 本地的秒杀券状态表：每个秒杀券的开始/结束时间、库存分片数、订单流分区数和售罄标记。
+ * 秒杀请求先查这张表，未开始、已结束、已售罄的请求直接拒绝，不访问Redis。
+ * 启动时从tb_seckill_voucher加载未结束的秒杀券；售罄、补货和新建通过Redisson topic广播给所有节点。
+ * 广播可能丢失，因此售罄标记超过一段时间后自动失效，放一个请求去Redis重新确认。
+ * 不存在和已结束的秒杀券放在容量有限的LRU缓存中，随机id和结束很久的券不会让状态表无限增长
+ */
+@Slf4j
+@Component
+public class VoucherStateTable {
+
+    private static final String SOLD_OUT = "soldout";
+    private static final String RESTOCK = "restock";
+    private static final String REFRESH = "refresh";
+
+    /**
+     * 数据库中不存在或已结束的秒杀券也缓存一段时间，防止随机id反复查库
+     */
+    private static final long MISSING_TTL_MILLIS = 10000;
+
+    private static final long EVICT_INTERVAL_MILLIS = 60000;
+
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.seckill.sold-out-recheck-seconds:10}")
+    private long soldOutRecheckSeconds;
+
+    @Value("${hmdp.seckill.inactive-voucher-capacity:10000}")
+    private int inactiveCapacity;
+
+    /**
+     * 未结束的秒杀券
+     */
+    private final Map<Long, VoucherState> states = new ConcurrentHashMap<>();
+
+    /**
+     * 不存在或已结束的秒杀券，按容量淘汰，超过MISSING_TTL_MILLIS后重新查库
+     */
+    private LRUCache<Long, VoucherState> inactive;
+
+    private RTopic topic;
+
+    public static class VoucherState {
+        private final LocalDateTime beginTime;
+        private final LocalDateTime endTime;
+        private final int stockShards;
+        private final int orderPartitions;
+        /**
+         * 售罄的时间，0表示未售罄
+         */
+        private volatile long soldOutAt;
+
+        VoucherState(LocalDateTime beginTime, LocalDateTime endTime, int stockShards, int orderPartitions) {
+            this.beginTime = beginTime;
+            this.endTime = endTime;
+            this.stockShards = stockShards;
+            this.orderPartitions = orderPartitions;
+        }
+
+        public boolean exists() {
+            return beginTime != null;
+        }
+
+        boolean ended(LocalDateTime now) {
+            return !exists() || endTime.isBefore(now);
+        }
+
+        public LocalDateTime getBeginTime() {
+            return beginTime;
+        }
+
+        public LocalDateTime getEndTime() {
+            return endTime;
+        }
+
+        public int getStockShards() {
+            return stockShards;
+        }
+
+        public int getOrderPartitions() {
+            return orderPartitions;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        inactive = CacheUtil.newLRUCache(inactiveCapacity, MISSING_TTL_MILLIS);
+        topic = redissonClient.getTopic(RedisConstants.SECKILL_VOUCHER_STATE_TOPIC, StringCodec.INSTANCE);
+        topic.addListener(String.class, (channel, message) -> onMessage(message));
+
+        List<SeckillVoucher> vouchers = seckillVoucherMapper.selectList(
+                Wrappers.lambdaQuery(SeckillVoucher.class).gt(SeckillVoucher::getEndTime, LocalDateTime.now()));
+        vouchers.forEach(voucher -> states.put(voucher.getVoucherId(), toState(voucher)));
+        log.info("加载{}个秒杀券状态", vouchers.size());
+
+        Gauge.builder("seckill.voucher.state.size", states, Map::size).register(meterRegistry);
+        Gauge.builder("seckill.voucher.state.inactive.size", inactive, LRUCache::size).register(meterRegistry);
+        Gauge.builder("seckill.voucher.sold.out", states,
+                s -> s.values().stream().filter(state -> state.soldOutAt > 0).count()).register(meterRegistry);
+    }
+
+    /**
+     * 查询秒杀券状态，本地没有时从数据库加载
+     */
+    public VoucherState get(Long voucherId) {
+        VoucherState state = states.get(voucherId);
+        if(state != null) {
+            return state;
+        }
+        state = inactive.get(voucherId, false);
+        if(state != null) {
+            return state;
+        }
+        return load(voucherId);
+    }
+
+    /**
+     * 把已结束的秒杀券移出状态表
+     */
+    @Scheduled(fixedDelay = EVICT_INTERVAL_MILLIS)
+    public void evictEnded() {
+        LocalDateTime now = LocalDateTime.now();
+        states.values().removeIf(state -> state.ended(now));
+    }
+
+    /**
+     * 本地判断是否已售罄，售罄标记超过复查时间后失效
+     */
+    public boolean isSoldOut(VoucherState state) {
+        long soldOutAt = state.soldOutAt;
+        if(soldOutAt == 0) {
+            return false;
+        }
+        if(System.currentTimeMillis() - soldOutAt > TimeUnit.SECONDS.toMillis(soldOutRecheckSeconds)) {
+            state.soldOutAt = 0;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Redis库存已空时调用，通知所有节点
+     */
+    public void markSoldOut(Long voucherId) {
+        VoucherState state = states.get(voucherId);
+        if(state != null && state.soldOutAt > 0) {
+            return;
+        }
+        publish(SOLD_OUT, voucherId);
+    }
+
+    /**
+     * 库存回补（如订单取消）后调用，清除所有节点的售罄标记
+     */
+    public void markRestocked(Long voucherId) {
+        publish(RESTOCK, voucherId);
+    }
+
+    /**
+     * 秒杀券新建或修改后调用，事务提交后通知所有节点重新加载
+     */
+    public void refresh(Long voucherId) {
+        if(TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    publish(REFRESH, voucherId);
+                }
+            });
+        } else {
+            publish(REFRESH, voucherId);
+        }
+    }
+
+    private void publish(String type, Long voucherId) {
+        // 先更新本节点，广播失败也不影响本节点
+        onMessage(type + ":" + voucherId);
+        try {
+            topic.publish(type + ":" + voucherId);
+        } catch (Exception e) {
+            log.warn("广播秒杀券{}状态{}失败", voucherId, type, e);
+        }
+    }
+
+    private void onMessage(String message) {
+        int i = message.indexOf(':');
+        String type = message.substring(0, i);
+        Long voucherId = Long.valueOf(message.substring(i + 1));
+        if(REFRESH.equals(type)) {
+            load(voucherId);
+            return;
+        }
+        VoucherState state = states.get(voucherId);
+        if(state == null) {
+            return;
+        }
+        if(SOLD_OUT.equals(type)) {
+            if(state.soldOutAt == 0) {
+                state.soldOutAt = System.currentTimeMillis();
+            }
+        } else if(RESTOCK.equals(type)) {
+            state.soldOutAt = 0;
+        }
+    }
+
+    private VoucherState load(Long voucherId) {
+        SeckillVoucher voucher = seckillVoucherMapper.selectById(voucherId);
+        VoucherState state = voucher == null ? new VoucherState(null, null, 1, 1) : toState(voucher);
+        if(state.ended(LocalDateTime.now())) {
+            states.remove(voucherId);
+            inactive.put(voucherId, state);
+        } else {
+            inactive.remove(voucherId);
+            states.put(voucherId, state);
+        }
+        return state;
+    }
+
+    private VoucherState toState(SeckillVoucher voucher) {
+        String shards = stringRedisTemplate.opsForValue().get(SeckillKeys.shardsKey(voucher.getVoucherId()));
+        String partitions = stringRedisTemplate.opsForValue().get(SeckillKeys.partitionsKey(voucher.getVoucherId()));
+        return new VoucherState(voucher.getBeginTime(), voucher.getEndTime(),
+                shards == null ? 1 : Integer.parseInt(shards), partitions == null ? 1 : Integer.parseInt(partitions));
+    }
+}
@@ -0,0 +1,310 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.WaitingRoomStatus;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 排队模式：需求远大于库存的秒杀券，抢购请求只领取一个排队号（一次Lua），然后轮询状态接口；
+ * 集群中持有调度锁的节点按排队号顺序、以固定速率代替用户执行抢购，把结果写回Redis。
+ * 这样打到下单脚本和订单流上的压力是平滑且有上限的，不会随点击量增长。
+ * 售罄后关闭排队，队列中剩余的用户直接得到库存不足；售罄标记过期后重新开放，确认取消订单归还的库存。
+ * 放行的一批用户先移入处理中列表，每个用户抢购后立即写回结果，整批写完才删除处理中列表，
+ * 调度节点中途宕机时由接手的节点重新放行这一批中还没有结果的用户；
+ * 宕机前已经下单、还没来得及写回结果的用户重新抢购会得到重复下单，这时查出已有的订单，按抢购成功写回
+ */
+@Slf4j
+@Component
+public class WaitingRoom {
+
+    private static final String META = "meta";
+    private static final String TICKETS = "tickets";
+    private static final String QUEUE = "queue";
+    private static final String PROCESSING = "processing";
+    private static final String RESULTS = "results";
+    private static final String SOLD_OUT = "soldout";
+
+    private static final String OK_PREFIX = "ok:";
+    private static final String FAIL_PREFIX = "fail:";
+
+    private static final String DUPLICATE_ORDER_MSG = "不能重复领取";
+
+    private static final long DISPATCH_INTERVAL_MILLIS = 100;
+
+    private static final DefaultRedisScript<Long> ENQUEUE_SCRIPT;
+    private static final DefaultRedisScript<List> TAKE_SCRIPT;
+    private static final DefaultRedisScript<Long> CLOSE_SCRIPT;
+    private static final DefaultRedisScript<List> STATUS_SCRIPT;
+    static {
+        ENQUEUE_SCRIPT = new DefaultRedisScript<>();
+        ENQUEUE_SCRIPT.setLocation(new ClassPathResource("room_enqueue.lua"));
+        ENQUEUE_SCRIPT.setResultType(Long.class);
+        TAKE_SCRIPT = new DefaultRedisScript<>();
+        TAKE_SCRIPT.setLocation(new ClassPathResource("room_take.lua"));
+        TAKE_SCRIPT.setResultType(List.class);
+        CLOSE_SCRIPT = new DefaultRedisScript<>();
+        CLOSE_SCRIPT.setLocation(new ClassPathResource("room_close.lua"));
+        CLOSE_SCRIPT.setResultType(Long.class);
+        STATUS_SCRIPT = new DefaultRedisScript<>();
+        STATUS_SCRIPT.setLocation(new ClassPathResource("room_status.lua"));
+        STATUS_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private VoucherStateTable voucherStateTable;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    /**
+     * 启用排队模式的秒杀券
+     */
+    @Value("${hmdp.seckill.waiting-room.voucher-ids:}")
+    private Set<Long> voucherIds;
+
+    /**
+     * 每个排队的秒杀券每秒放行去抢购的人数，按下单脚本和订单消费者能承受的速率设置
+     */
+    @Value("${hmdp.seckill.waiting-room.admit-per-second:500}")
+    private double admitPerSecond;
+
+    @Value("${hmdp.seckill.sold-out-recheck-seconds:10}")
+    private long soldOutRecheckSeconds;
+
+    @Value("${hmdp.seckill.buyer-set-retention-hours:24}")
+    private long retentionHours;
+
+    private final Map<Long, Double> allowances = new HashMap<>();
+
+    private long lastDispatch;
+
+    private ScheduledExecutorService dispatcher;
+
+    private RLock dispatchLock;
+
+    @PostConstruct
+    private void init() {
+        if(voucherIds.isEmpty()) {
+            return;
+        }
+        dispatchLock = redissonClient.getLock(RedisConstants.LOCK_SECKILL_ROOM_KEY);
+        dispatcher = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "seckill-room-dispatcher"));
+        dispatcher.scheduleWithFixedDelay(this::dispatch, DISPATCH_INTERVAL_MILLIS, DISPATCH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if(dispatcher == null) {
+            return;
+        }
+        dispatcher.submit(() -> {
+            if(dispatchLock.isHeldByCurrentThread()) {
+                dispatchLock.unlock();
+            }
+        });
+        dispatcher.shutdown();
+    }
+
+    public boolean isEnabled(Long voucherId) {
+        return voucherIds.contains(voucherId);
+    }
+
+    /**
+     * 领取排队号
+     */
+    public Result enqueue(Long voucherId, Long userId) {
+        VoucherStateTable.VoucherState state = voucherStateTable.get(voucherId);
+        if(!state.exists()) {
+            return Result.fail("优惠券不存在");
+        }
+        LocalDateTime now = LocalDateTime.now();
+        if(state.getBeginTime().isAfter(now)) {
+            return Result.fail("秒杀尚未开始");
+        }
+        if(state.getEndTime().isBefore(now)) {
+            return Result.fail("秒杀已经结束");
+        }
+
+        long expireAt = state.getEndTime().plusHours(retentionHours).atZone(ZoneId.systemDefault()).toEpochSecond();
+        Long ticket = stringRedisTemplate.execute(ENQUEUE_SCRIPT,
+                Arrays.asList(key(voucherId, META), key(voucherId, TICKETS), key(voucherId, QUEUE),
+                        key(voucherId, RESULTS), key(voucherId, SOLD_OUT)),
+                userId.toString(), String.valueOf(expireAt));
+        if(ticket == null || ticket < 0) {
+            return Result.fail("库存不足");
+        }
+        return Result.ok(status(voucherId, userId));
+    }
+
+    /**
+     * 查询排队状态，一次Lua读取排队号、放行进度和抢购结果
+     */
+    @SuppressWarnings("unchecked")
+    public WaitingRoomStatus status(Long voucherId, Long userId) {
+        List<String> values = stringRedisTemplate.execute(STATUS_SCRIPT,
+                Arrays.asList(key(voucherId, META), key(voucherId, TICKETS), key(voucherId, RESULTS)),
+                userId.toString());
+        WaitingRoomStatus status = new WaitingRoomStatus();
+        if(values == null || StrUtil.isEmpty(values.get(0))) {
+            status.setStatus(WaitingRoomStatus.NOT_QUEUED);
+            return status;
+        }
+        long ticket = Long.parseLong(values.get(0)), served = Long.parseLong(values.get(1)), closed = Long.parseLong(values.get(2));
+        String result = values.get(3);
+        status.setTicket(ticket);
+        if(result.startsWith(OK_PREFIX)) {
+            status.setStatus(WaitingRoomStatus.SUCCESS);
+            status.setOrderId(Long.valueOf(result.substring(OK_PREFIX.length())));
+        } else if(result.startsWith(FAIL_PREFIX)) {
+            status.setStatus(WaitingRoomStatus.FAILED);
+            status.setErrorMsg(result.substring(FAIL_PREFIX.length()));
+        } else if(ticket <= closed) {
+            status.setStatus(WaitingRoomStatus.FAILED);
+            status.setErrorMsg("库存不足");
+        } else {
+            status.setStatus(WaitingRoomStatus.WAITING);
+            status.setPosition(Math.max(ticket - served - 1, 0));
+        }
+        return status;
+    }
+
+    /**
+     * 只有持有调度锁的节点放行，锁由看门狗续期，节点宕机后由其他节点接手
+     */
+    private void dispatch() {
+        try {
+            if(!dispatchLock.isHeldByCurrentThread() && !dispatchLock.tryLock()) {
+                lastDispatch = 0;
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long elapsed = lastDispatch == 0 ? DISPATCH_INTERVAL_MILLIS : now - lastDispatch;
+            lastDispatch = now;
+            for (Long voucherId : voucherIds) {
+                // 按经过的时间累积放行名额，最多积累1秒
+                double allowance = Math.min(allowances.getOrDefault(voucherId, 0D) + elapsed * admitPerSecond / 1000, admitPerSecond);
+                int count = (int) allowance;
+                allowances.put(voucherId, allowance - (count > 0 ? dispatch(voucherId, count) : 0));
+            }
+        } catch (Exception e) {
+            log.error("排队放行异常", e);
+        }
+    }
+
+    /**
+     * 按顺序放行一批用户，返回放行的人数
+     */
+    @SuppressWarnings("unchecked")
+    private int dispatch(Long voucherId, int count) {
+        List<String> entries = stringRedisTemplate.execute(TAKE_SCRIPT,
+                Arrays.asList(key(voucherId, QUEUE), key(voucherId, PROCESSING)), String.valueOf(count));
+        if(entries == null || entries.isEmpty()) {
+            return 0;
+        }
+
+        // 重新放行中断的一批时，已经有结果的用户不再抢购，避免把成功的结果覆盖成重复下单
+        List<Object> userIds = new ArrayList<>(entries.size());
+        for (String entry : entries) {
+            userIds.add(entry.substring(entry.indexOf(':') + 1));
+        }
+        List<Object> existing = stringRedisTemplate.opsForHash().multiGet(key(voucherId, RESULTS), userIds);
+
+        String served = null;
+        for (int j = 0; j < entries.size(); j++) {
+            String entry = entries.get(j);
+            int i = entry.indexOf(':');
+            served = entry.substring(0, i);
+            if(existing.get(j) != null) {
+                continue;
+            }
+            String userId = entry.substring(i + 1);
+            Result result;
+            try {
+                result = voucherOrderService.seckillVoucher(voucherId, Long.valueOf(userId));
+                if(!result.getSuccess() && DUPLICATE_ORDER_MSG.equals(result.getErrorMsg())) {
+                    Long orderId = findOrderId(voucherId, Long.valueOf(userId));
+                    if(orderId != null) {
+                        result = Result.ok(orderId);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("排队用户{}抢购秒杀券{}异常", userId, voucherId, e);
+                result = Result.fail("服务器异常");
+            }
+            stringRedisTemplate.opsForHash().put(key(voucherId, RESULTS), userId,
+                    result.getSuccess() ? OK_PREFIX + result.getData() : FAIL_PREFIX + result.getErrorMsg());
+        }
+        stringRedisTemplate.opsForHash().put(key(voucherId, META), "served", served);
+        stringRedisTemplate.delete(key(voucherId, PROCESSING));
+
+        if(voucherStateTable.isSoldOut(voucherStateTable.get(voucherId))) {
+            stringRedisTemplate.execute(CLOSE_SCRIPT,
+                    Arrays.asList(key(voucherId, META), key(voucherId, QUEUE), key(voucherId, SOLD_OUT)),
+                    String.valueOf(TimeUnit.SECONDS.toMillis(soldOutRecheckSeconds)));
+            log.info("秒杀券{}已售罄，关闭排队", voucherId);
+        }
+        return entries.size();
+    }
+
+    /**
+     * 查找用户已有的订单：先按唯一索引查数据库中未取消的订单，还没有落库时到各slot的超时队列中按 *:voucherId:userId 查找。
+     * 只在重新放行的一批中遇到重复下单时调用
+     */
+    private Long findOrderId(Long voucherId, Long userId) {
+        VoucherOrder order = voucherOrderService.query().select("id")
+                .eq("active_voucher_id", voucherId).eq("user_id", userId).one();
+        if(order != null) {
+            return order.getId();
+        }
+        int shards = voucherStateTable.get(voucherId).getStockShards();
+        ScanOptions options = ScanOptions.scanOptions().match("*:" + voucherId + ":" + userId).count(1000).build();
+        for (String slot : SeckillKeys.slots(voucherId, shards)) {
+            try (Cursor<ZSetOperations.TypedTuple<String>> cursor =
+                         stringRedisTemplate.opsForZSet().scan(SeckillKeys.unpaidKey(slot), options)) {
+                if(cursor.hasNext()) {
+                    String member = cursor.next().getValue();
+                    return Long.valueOf(member.substring(0, member.indexOf(':')));
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String key(Long voucherId, String name) {
+        return SeckillKeys.roomKey(voucherId, name);
+    }
+}
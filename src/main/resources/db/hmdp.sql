@@ -1274,7 +1274,9 @@ CREATE TABLE `tb_voucher_order`  (
   `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
   `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  `active_voucher_id` bigint(20) UNSIGNED NULL DEFAULT NULL COMMENT '未取消订单的代金券id，取消后置为NULL，用于一人一单的唯一索引',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_voucher_buyer`(`active_voucher_id`, `user_id`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
@@ -0,0 +1,23 @@
+-- ----------------------------
+-- tb_voucher_order 一人一单唯一索引
+-- 已取消的订单不占用名额（取消后可以重新抢购），MySQL 5.6没有部分索引和生成列，
+-- 用 active_voucher_id 代替：未取消的订单等于 voucher_id，取消时置为NULL，唯一索引允许多个NULL
+-- ----------------------------
+
+-- 1.加列
+ALTER TABLE `tb_voucher_order`
+  ADD COLUMN `active_voucher_id` bigint(20) UNSIGNED NULL DEFAULT NULL COMMENT '未取消订单的代金券id，取消后置为NULL，用于一人一单的唯一索引';
+
+-- 2.回填未取消的订单，订单表较大时按主键范围分批执行
+UPDATE `tb_voucher_order` SET `active_voucher_id` = `voucher_id` WHERE `status` <> 4;
+
+-- 3.检查已有的重复订单，结果不为空时先人工处理（取消多余的订单并把 active_voucher_id 置为NULL），否则第4步会失败
+SELECT `active_voucher_id`, `user_id`, COUNT(*) AS `orders`
+FROM `tb_voucher_order`
+WHERE `active_voucher_id` IS NOT NULL
+GROUP BY `active_voucher_id`, `user_id`
+HAVING COUNT(*) > 1;
+
+-- 4.加唯一索引
+ALTER TABLE `tb_voucher_order`
+  ADD UNIQUE INDEX `uk_voucher_buyer`(`active_voucher_id`, `user_id`) USING BTREE;
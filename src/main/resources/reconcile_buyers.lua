@@ -0,0 +1,13 @@
+-- 对账时移除一个slot中没有未取消订单、也没有处理中订单的已购用户
+-- KEYS[1] 已购用户（set或bitmap）
+-- ARGV[1] 已购用户的存储方式 set 或 bitmap ARGV[2...] userId
+-- 返回移除的用户数
+local removed = 0
+for i = 2, #ARGV do
+    if(ARGV[1] == 'bitmap') then
+        removed = removed + redis.call('setbit', KEYS[1], ARGV[i], 0)
+    else
+        removed = removed + redis.call('srem', KEYS[1], ARGV[i])
+    end
+end
+return removed
@@ -0,0 +1,23 @@
+-- 对账时读取一个slot中的库存、已购用户数和未落库的订单，在一个脚本中读取，三者是同一时刻的值
+-- KEYS[1] 库存 KEYS[2] 已购用户（set或bitmap） KEYS[3] 未落库的订单
+-- ARGV[1] 已购用户的存储方式 set 或 bitmap ARGV[2] 最多读取的未落库订单数
+-- 返回 {库存, 已购用户数, 未落库订单数, 订单id...}，未落库订单超过上限时不返回订单id；库存未预热或已清理时返回空列表
+local stock = redis.call('get', KEYS[1])
+if(not stock) then
+    return {}
+end
+local buyers
+if(ARGV[1] == 'bitmap') then
+    buyers = redis.call('bitcount', KEYS[2])
+else
+    buyers = redis.call('scard', KEYS[2])
+end
+local inFlight = redis.call('scard', KEYS[3])
+local result = {stock, tostring(buyers), tostring(inFlight)}
+if(inFlight > tonumber(ARGV[2])) then
+    return result
+end
+for i, orderId in ipairs(redis.call('smembers', KEYS[3])) do
+    result[i + 3] = orderId
+end
+return result
@@ -0,0 +1,16 @@
+-- 对账修正一个slot中的库存：按修正量增减，与期间正常的下单和取消互不影响
+-- 扣减时最多扣到0；库存key不存在（未预热或已清理）时不修正
+-- KEYS[1] 库存 ARGV[1] 修正量
+-- 返回实际的修正量
+local stock = redis.call('get', KEYS[1])
+if(not stock) then
+    return 0
+end
+local delta = tonumber(ARGV[1])
+if(delta < 0) then
+    delta = -math.min(math.max(tonumber(stock), 0), -delta)
+end
+if(delta ~= 0) then
+    redis.call('incrby', KEYS[1], delta)
+end
+return delta
@@ -0,0 +1,7 @@
+-- 售罄时关闭排队：清空队列，记录关闭时已发放的最大号，这些号的用户直接得到库存不足；
+-- 售罄标记过期后重新开放排队，确认取消订单归还的库存
+-- KEYS[1] 排队信息 KEYS[2] 排队队列 KEYS[3] 售罄标记 ARGV[1] 售罄标记的有效期（毫秒）
+redis.call('hset', KEYS[1], 'closed', redis.call('hget', KEYS[1], 'seq') or '0')
+redis.call('del', KEYS[2])
+redis.call('set', KEYS[3], '1', 'px', ARGV[1])
+return 1
@@ -0,0 +1,19 @@
+-- 排队模式领取排队号，同一用户重复领取返回原来的号；已售罄返回-1
+-- KEYS[1] 排队信息（seq：已发放的最大号，served：已放行的最大号，closed：因售罄关闭的最大号）
+-- KEYS[2] 用户的排队号 KEYS[3] 排队队列 KEYS[4] 抢购结果 KEYS[5] 售罄标记
+-- ARGV[1] userId ARGV[2] 过期时间（秒级时间戳）
+local ticket = redis.call('hget', KEYS[2], ARGV[1])
+if(ticket) then
+    return tonumber(ticket)
+end
+if(redis.call('exists', KEYS[5]) == 1) then
+    return -1
+end
+
+ticket = redis.call('hincrby', KEYS[1], 'seq', 1)
+redis.call('hset', KEYS[2], ARGV[1], ticket)
+redis.call('rpush', KEYS[3], ticket .. ':' .. ARGV[1])
+for i = 1, 4 do
+    redis.call('expireat', KEYS[i], ARGV[2])
+end
+return ticket
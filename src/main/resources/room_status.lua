@@ -0,0 +1,9 @@
+-- 查询用户的排队状态：{排队号, 已放行的最大号, 关闭时的最大号, 抢购结果}，不存在的字段为空字符串
+-- KEYS[1] 排队信息 KEYS[2] 用户的排队号 KEYS[3] 抢购结果 ARGV[1] userId
+local meta = redis.call('hmget', KEYS[1], 'served', 'closed')
+return {
+    redis.call('hget', KEYS[2], ARGV[1]) or '',
+    meta[1] or '0',
+    meta[2] or '0',
+    redis.call('hget', KEYS[3], ARGV[1]) or ''
+}
@@ -0,0 +1,17 @@
+-- 从排队队列头部取出一批移入处理中列表，按排队号顺序放行，结果写回后再删除处理中列表；
+-- 处理中列表不为空说明上一次放行中途中断（如调度节点宕机），先重新放行这一批
+-- KEYS[1] 排队队列 KEYS[2] 处理中列表 ARGV[1] 个数
+local processing = redis.call('lrange', KEYS[2], 0, -1)
+if(#processing > 0) then
+    return processing
+end
+local entries = redis.call('lrange', KEYS[1], 0, tonumber(ARGV[1]) - 1)
+if(#entries > 0) then
+    local ttl = redis.call('pttl', KEYS[1])
+    redis.call('ltrim', KEYS[1], #entries, -1)
+    redis.call('rpush', KEYS[2], unpack(entries))
+    if(ttl > 0) then
+        redis.call('pexpire', KEYS[2], ttl)
+    end
+end
+return entries
@@ -1,21 +1,58 @@
+-- 秒杀下单。所有key都由调用方通过KEYS声明，且带有相同的hash tag，在Redis Cluster中位于同一个slot
+-- KEYS[1] 库存 KEYS[2] 已购用户（set或bitmap） KEYS[3] 订单流 KEYS[4] 未支付订单的超时队列 KEYS[5] 未落库的订单
+-- ARGV[1] voucherId ARGV[2] userId ARGV[3] orderId
+-- ARGV[4] 已购用户的存储方式：set（userId字符串集合）或 bitmap（以userId为偏移量的位图）
+-- ARGV[5] 已购用户key的过期时间（秒级时间戳），秒杀结束一段时间后自动清理
+-- ARGV[6] 未支付订单的取消时间（毫秒时间戳）
+-- ARGV[7] 是否为分片模式：分片模式下主分片库存为空时先占住一人一单的名额，由调用方到其他分片扣库存
+-- 返回 0 下单成功 1 库存不足 2 重复下单 3 主分片库存为空
+local stockKey = KEYS[1]
+local buyersKey = KEYS[2]
+local streamKey = KEYS[3]
+local unpaidKey = KEYS[4]
+local inFlightKey = KEYS[5]
+
 local voucherId = ARGV[1]
 local userId = ARGV[2]
 local orderId = ARGV[3]
+local bitmap = ARGV[4] == 'bitmap'
+local expireAt = ARGV[5]
+local deadline = ARGV[6]
+local sharded = ARGV[7] == '1'
 
-local stockKey = 'seckill:stock:' .. voucherId
-local orderKey = 'seckill:order:' .. voucherId
-
+local function isBuyer()
+    if(bitmap) then
+        return redis.call('getbit', buyersKey, userId) == 1
+    end
+    return redis.call('sismember', buyersKey, userId) == 1
+end
 
-if(tonumber(redis.call('get', stockKey)) <= 0) then
-    return 1
+local function addBuyer()
+    if(bitmap) then
+        redis.call('setbit', buyersKey, userId, 1)
+    else
+        redis.call('sadd', buyersKey, userId)
+    end
+    redis.call('expireat', buyersKey, expireAt)
 end
 
-if(redis.call('sismember', orderKey, userId) == 1) then
+if(isBuyer()) then
     return 2
 end
 
+if(tonumber(redis.call('get', stockKey) or '0') <= 0) then
+    if(sharded) then
+        addBuyer()
+        return 3
+    end
+    return 1
+end
+
 redis.call('incrby', stockKey, -1)
-redis.call('sadd', orderKey, userId)
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+addBuyer()
+redis.call('zadd', unpaidKey, deadline, orderId .. ':' .. voucherId .. ':' .. userId)
+redis.call('sadd', inFlightKey, orderId)
+redis.call('expireat', inFlightKey, expireAt)
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
 
-return 0
\ No newline at end of file
+return 0
@@ -0,0 +1,17 @@
+-- 秒杀准入：每个时间窗口内放行到下单脚本的请求数不超过 剩余库存 * 倍数
+-- KEYS[1] 库存 KEYS[2] 准入计数
+-- ARGV[1] 倍数 ARGV[2] 时间窗口（毫秒）
+local stock = tonumber(redis.call('get', KEYS[1]) or '0')
+if(stock <= 0) then
+    -- 库存为空时放行，由下单脚本返回库存不足（分片模式下会去其他分片扣库存）
+    return 1
+end
+
+local admitted = redis.call('incr', KEYS[2])
+if(admitted == 1) then
+    redis.call('pexpire', KEYS[2], ARGV[2])
+end
+if(admitted > math.ceil(stock * tonumber(ARGV[1]))) then
+    return 0
+end
+return 1
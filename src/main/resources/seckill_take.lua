@@ -0,0 +1,14 @@
+-- 分片模式下从其他分片扣减一个库存，并写入该分片的订单流、超时队列和未落库订单，所有key在该分片的slot中
+-- KEYS[1] 分片库存 KEYS[2] 分片订单流 KEYS[3] 分片超时队列 KEYS[4] 分片未落库的订单
+-- ARGV[1] voucherId ARGV[2] userId ARGV[3] orderId ARGV[4] 未支付订单的取消时间（毫秒时间戳）
+-- ARGV[5] 未落库订单key的过期时间（秒级时间戳）
+-- 成功返回1，库存为空返回0
+if(tonumber(redis.call('get', KEYS[1]) or '0') <= 0) then
+    return 0
+end
+redis.call('incrby', KEYS[1], -1)
+redis.call('zadd', KEYS[3], ARGV[4], ARGV[3] .. ':' .. ARGV[1] .. ':' .. ARGV[2])
+redis.call('sadd', KEYS[4], ARGV[3])
+redis.call('expireat', KEYS[4], ARGV[5])
+redis.call('xadd', KEYS[2], '*', 'userId', ARGV[2], 'voucherId', ARGV[1], 'id', ARGV[3])
+return 1
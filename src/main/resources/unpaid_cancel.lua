@@ -0,0 +1,25 @@
+-- 订单取消后归还Redis中的库存，以从超时队列中移除成员为准，重复执行不会重复归还
+-- 库存归还到下单时扣减的分片，与超时队列、未落库订单在同一个slot
+-- KEYS[1] 超时队列 KEYS[2] 库存 KEYS[3] 未落库的订单
+-- KEYS[4] 已购用户（set或bitmap），只在与库存同一个slot时传入，和归还库存一起原子地移除名额；不在同一个slot时由调用方移除
+-- ARGV[1] 队列成员（orderId:voucherId:userId） ARGV[2] 已购用户的存储方式：set 或 bitmap
+if(redis.call('zrem', KEYS[1], ARGV[1]) == 0) then
+    return 0
+end
+local orderId, userId = string.match(ARGV[1], '^([^:]+):[^:]+:([^:]+)$')
+-- 未落库就被取消的订单不再是在途订单
+redis.call('srem', KEYS[3], orderId)
+
+-- 秒杀结束后库存key可能已清理，不再重建
+if(redis.call('exists', KEYS[2]) == 1) then
+    redis.call('incrby', KEYS[2], 1)
+end
+
+if(KEYS[4]) then
+    if(ARGV[2] == 'bitmap') then
+        redis.call('setbit', KEYS[4], userId, 0)
+    else
+        redis.call('srem', KEYS[4], userId)
+    end
+end
+return 1
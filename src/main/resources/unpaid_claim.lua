@@ -0,0 +1,8 @@
+-- 从超时队列中取出已到期的成员，并把它们的分数推迟到租约结束，
+-- 多个节点同时轮询时不会重复处理；处理节点宕机时租约到期后由其他节点重新取出
+-- KEYS[1] 超时队列 ARGV[1] 当前时间 ARGV[2] 最多取出的个数 ARGV[3] 租约结束时间
+local members = redis.call('zrangebyscore', KEYS[1], '-inf', ARGV[1], 'limit', 0, ARGV[2])
+for i, member in ipairs(members) do
+    redis.call('zadd', KEYS[1], ARGV[3], member)
+end
+return members
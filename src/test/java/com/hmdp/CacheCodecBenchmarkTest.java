@@ -0,0 +1,118 @@
+package com.hmdp;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.RedisData;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 对比JSON与二进制两种缓存格式的体积和编解码耗时，不依赖Spring容器
+ */
+public class CacheCodecBenchmarkTest {
+
+    private static final int WARMUP = 10_000;
+    private static final int ITERATIONS = 50_000;
+
+    private final CacheCodec json = new JsonCacheCodec();
+    private final CacheCodec binary = new BinaryCacheCodec();
+
+    @Test
+    public void testRoundTrip() {
+        for (Object value : new Object[]{shop(), blog(), user()}) {
+            assertEquals(value, json.decode(json.encode(value), value.getClass()));
+            assertEquals(value, binary.decode(binary.encode(value), value.getClass()));
+        }
+
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS));
+        redisData.setData(shop());
+        for (CacheCodec codec : new CacheCodec[]{json, binary}) {
+            RedisData decoded = codec.decodeRedisData(codec.encodeRedisData(redisData), Shop.class);
+            assertEquals(redisData.getExpireTime(), decoded.getExpireTime());
+            assertEquals(redisData.getData(), decoded.getData());
+        }
+    }
+
+    @Test
+    public void benchmark() {
+        bench("Shop", shop());
+        bench("Blog", blog());
+        bench("UserDTO", user());
+    }
+
+    private void bench(String name, Object value) {
+        for (CacheCodec codec : new CacheCodec[]{json, binary}) {
+            byte[] bytes = codec.encode(value);
+            for (int i = 0; i < WARMUP; i++) {
+                codec.decode(codec.encode(value), value.getClass());
+            }
+
+            long begin = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                codec.encode(value);
+            }
+            long encodeNs = (System.nanoTime() - begin) / ITERATIONS;
+
+            begin = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                codec.decode(bytes, value.getClass());
+            }
+            long decodeNs = (System.nanoTime() - begin) / ITERATIONS;
+
+            System.out.printf("%-8s %-18s size=%4d bytes  encode=%6d ns  decode=%6d ns%n",
+                    name, codec.getClass().getSimpleName(), bytes.length, encodeNs, decodeNs);
+        }
+    }
+
+    private static Shop shop() {
+        LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS);
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(now)
+                .setUpdateTime(now);
+    }
+
+    private static Blog blog() {
+        LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS);
+        return new Blog()
+                .setId(4L)
+                .setShopId(4L)
+                .setUserId(2L)
+                .setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯🍷品战斧牛排🥩")
+                .setImages("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a.jpg,/imgs/blogs/4/10/2f07e3c9-ddce-482d-9ea7-c21450f8d7cd.jpg")
+                .setContent("生活就是一半烟火·一半诗意<br/>手执烟火谋生活·心怀诗意以谋爱·<br/>当然<br/>\\r\\n男朋友给不了的浪漫要学会自己给🍒")
+                .setLiked(2)
+                .setComments(104)
+                .setCreateTime(now)
+                .setUpdateTime(now);
+    }
+
+    private static UserDTO user() {
+        UserDTO user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("user_slxaxy2au9f3tanffaxr");
+        user.setIcon("/imgs/icons/kkjtbcr.jpg");
+        return user;
+    }
+}
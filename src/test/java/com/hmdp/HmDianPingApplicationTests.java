@@ -3,19 +3,27 @@ package com.hmdp;
 import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Shop;
+import com.hmdp.entity.Voucher;
 import com.hmdp.service.IBlogService;
 import com.hmdp.service.IShopService;
 import com.hmdp.service.IUserService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillKeys;
 import com.hmdp.utils.UserHolder;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
@@ -41,6 +49,12 @@ class HmDianPingApplicationTests {
     @Resource
     StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    IVoucherService voucherService;
+
+    @Resource
+    IVoucherOrderService voucherOrderService;
+
     private ExecutorService es = Executors.newFixedThreadPool(300);
 
     @Test
@@ -100,4 +114,58 @@ class HmDianPingApplicationTests {
         Long count = stringRedisTemplate.opsForHyperLogLog().size("hl2");
         System.out.println("count = " + count);
     }
+
+    /**
+     * 订单消费者排空10万条积压消息的速度，可调整 hmdp.seckill.consumer.batch-size 对比逐条与批量处理，
+     * 调整 threads 或启动多个节点对比扩展性
+     */
+    @Test
+    void drainOrderBacklog() throws InterruptedException {
+        int total = 100000;
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("drain benchmark");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(100L);
+        voucher.setType(1);
+        voucher.setStock(total);
+        voucher.setBeginTime(LocalDateTime.now());
+        voucher.setEndTime(LocalDateTime.now().plusDays(1));
+        voucherService.addSeckillVoucher(voucher);
+        Long voucherId = voucher.getId();
+        String shards = stringRedisTemplate.opsForValue().get(SeckillKeys.shardsKey(voucherId));
+        int shardCount = shards == null ? 1 : Integer.parseInt(shards);
+        String partitions = stringRedisTemplate.opsForValue().get(SeckillKeys.partitionsKey(voucherId));
+        int partitionCount = partitions == null ? 1 : Integer.parseInt(partitions);
+
+        // 直接写入stream模拟秒杀结束后的积压，每1000条一个pipeline
+        for (int i = 0; i < total; i += 1000) {
+            int from = i;
+            long[] orderIds = new long[1000];
+            for (int j = 0; j < orderIds.length; j++) {
+                orderIds[j] = redisIdWorker.nextId("order");
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (int j = 0; j < orderIds.length; j++) {
+                    long userId = from + j + 1;
+                    Map<String, String> order = new HashMap<>();
+                    order.put("userId", String.valueOf(userId));
+                    order.put("voucherId", voucherId.toString());
+                    order.put("id", String.valueOf(orderIds[j]));
+                    conn.xAdd(SeckillKeys.userOrdersKey(SeckillKeys.userSlot(voucherId, userId, shardCount), userId, partitionCount), order);
+                }
+                return null;
+            });
+        }
+
+        long begin = System.currentTimeMillis();
+        long count;
+        do {
+            Thread.sleep(200);
+            count = voucherOrderService.query().eq("voucher_id", voucherId).count();
+        } while(count < total && System.currentTimeMillis() - begin < 600_000);
+        long cost = System.currentTimeMillis() - begin;
+        System.out.printf("drained %d orders in %d ms, %.0f orders/s%n", count, cost, count * 1000.0 / cost);
+    }
 }
@@ -0,0 +1,62 @@
+package com.hmdp;
+
+import com.hmdp.utils.RedisIdWorker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比逐个INCR与号段模式生成id的吞吐量，需要一个可访问的Redis：
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.hmdp.RedisIdWorkerBenchmark -Dredis.host=127.0.0.1
+ * 或在IDE中直接运行main方法
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class RedisIdWorkerBenchmark {
+
+    @Param({"0", "1000"})
+    int segmentStep;
+
+    private LettuceConnectionFactory connectionFactory;
+
+    private RedisIdWorker redisIdWorker;
+
+    @Setup
+    public void setup() {
+        RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(
+                System.getProperty("redis.host", "127.0.0.1"),
+                Integer.getInteger("redis.port", 6379));
+        connectionFactory = new LettuceConnectionFactory(configuration);
+        connectionFactory.afterPropertiesSet();
+        redisIdWorker = new RedisIdWorker(new StringRedisTemplate(connectionFactory), segmentStep);
+    }
+
+    @TearDown
+    public void tearDown() {
+        connectionFactory.destroy();
+    }
+
+    @Benchmark
+    public long nextId() {
+        return redisIdWorker.nextId("benchmark");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(RedisIdWorkerBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}